@@ -7,7 +7,9 @@ package org.jdht.bencode;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -16,7 +18,13 @@ import java.util.TreeMap;
 
 public class Bencode {
 
+    private static final int MAX_DEPTH = 64;
+    private static final DictionaryComparator DICTIONARY_COMPARATOR = new DictionaryComparator();
+
     private Object rootElement = null;
+    private ByteBuffer input = null;
+    private int position;
+    private int limit;
 
     /**
      * This creates and parse a bencoded InputStream
@@ -28,6 +36,30 @@ public class Bencode {
         rootElement = parse(is);
     }
 
+    /**
+     * This creates and parse a bencoded slice of a byte array.
+     * Byte strings are returned as views into data, nothing is copied.
+     */
+    public Bencode(byte[] data, int offset, int length) throws IOException {
+        this(ByteBuffer.wrap(data, offset, length));
+    }
+
+    /**
+     * This creates and parse the remaining bytes of a bencoded ByteBuffer.
+     * Byte strings are returned as views into buffer, nothing is copied.
+     * The position of buffer is not changed.
+     */
+    public Bencode(ByteBuffer buffer) throws IOException {
+        input = buffer;
+        position = buffer.position();
+        limit = buffer.limit();
+        try {
+            rootElement = parse(0);
+        } finally {
+            input = null;
+        }
+    }
+
     /**
      * This creates a new instance of Bencode class
      */
@@ -48,34 +80,35 @@ public class Bencode {
             os.write('e');
         }
         if (object instanceof ByteBuffer) {
-            byte[] byteString = ((ByteBuffer) object).array();
-            os.write(Integer.toString(byteString.length).getBytes());
+            ByteBuffer byteString = (ByteBuffer) object;
+            os.write(Integer.toString(byteString.remaining()).getBytes());
             os.write(':');
-            os.write(byteString);
+            if (byteString.hasArray())
+                os.write(byteString.array(), byteString.arrayOffset() + byteString.position(), byteString.remaining());
+            else
+                os.write(getBytes(byteString));
             //for (int i = 0; i < byteString.length; i++) {
             //    os.write(byteString[i]);
             //}
         } else if (object instanceof List) {
-            List list = (List) object;
+            List<?> list = (List<?>) object;
             os.write('l');
             for (Object elem : list) {
                 print(elem, os);
             }
             os.write('e');
         } else if (object instanceof Map) {
-            Map map = (Map) object;
+            Map<?, ?> map = (Map<?, ?>) object;
             os.write('d');
 
             SortedMap<ByteBuffer, Object> sortedMap = new TreeMap<ByteBuffer, Object>(new DictionaryComparator());
             // sortedMap.putAll(map);
 
-            for (Object elem : map.entrySet()) {
-                Map.Entry entry = (Map.Entry) elem;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
                 sortedMap.put((ByteBuffer) entry.getKey(), entry.getValue());
             }
 
-            for (Object elem : sortedMap.entrySet()) {
-                Map.Entry entry = (Map.Entry) elem;
+            for (Map.Entry<ByteBuffer, Object> entry : sortedMap.entrySet()) {
                 print(entry.getKey(), os);
                 print(entry.getValue(), os);
             }
@@ -83,34 +116,126 @@ public class Bencode {
         }
     }
     
+    /**
+     * Creates an empty dictionary that is kept in bencode key order,
+     * so encode can write it without sorting
+     */
+    public static SortedMap<ByteBuffer, Object> newDictionary() {
+        return new TreeMap<ByteBuffer, Object>(DICTIONARY_COMPARATOR);
+    }
+
+    /**
+     * This encodes object into buffer in a single pass, starting at its position.
+     * Dictionaries sorted by a DictionaryComparator (see newDictionary) are
+     * written in their own order, the keys of other maps are sorted first.
+     * Throws BufferOverflowException if object does not fit in buffer.
+     */
+    public static void encode(Object object, ByteBuffer buffer) {
+        if (object instanceof Long) {
+            encodeInteger((Long) object, buffer);
+        } else if (object instanceof ByteBuffer) {
+            encodeByteString((ByteBuffer) object, buffer);
+        } else if (object instanceof List) {
+            List<?> list = (List<?>) object;
+            buffer.put((byte) 'l');
+            for (Object elem : list) {
+                encode(elem, buffer);
+            }
+            buffer.put((byte) 'e');
+        } else if (object instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) object;
+            buffer.put((byte) 'd');
+            if (map instanceof SortedMap && ((SortedMap<?, ?>) map).comparator() instanceof DictionaryComparator) {
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    encode(entry.getKey(), buffer);
+                    encode(entry.getValue(), buffer);
+                }
+            } else {
+                ByteBuffer[] keys = map.keySet().toArray(new ByteBuffer[map.size()]);
+                Arrays.sort(keys, DICTIONARY_COMPARATOR);
+                for (ByteBuffer key : keys) {
+                    encode(key, buffer);
+                    encode(map.get(key), buffer);
+                }
+            }
+            buffer.put((byte) 'e');
+        } else {
+            throw new IllegalArgumentException("Cannot bencode " +
+                    (object == null ? "null" : object.getClass().getName()));
+        }
+    }
+
+    public static void encodeInteger(long value, ByteBuffer buffer) {
+        buffer.put((byte) 'i');
+        putDecimal(value, buffer);
+        buffer.put((byte) 'e');
+    }
+
+    /**
+     * This encodes the remaining bytes of byteString, its position is not changed
+     */
+    public static void encodeByteString(ByteBuffer byteString, ByteBuffer buffer) {
+        putDecimal(byteString.remaining(), buffer);
+        buffer.put((byte) ':');
+        if (byteString.hasArray())
+            buffer.put(byteString.array(), byteString.arrayOffset() + byteString.position(), byteString.remaining());
+        else
+            buffer.put(byteString.duplicate());
+    }
+
+    /**
+     * This encodes an ASCII string as a byte string
+     */
+    public static void encodeByteString(String string, ByteBuffer buffer) {
+        putDecimal(string.length(), buffer);
+        buffer.put((byte) ':');
+        for (int i = 0; i < string.length(); i++)
+            buffer.put((byte) string.charAt(i));
+    }
+
+    private static void putDecimal(long value, ByteBuffer buffer) {
+        if (value < 0)
+            buffer.put((byte) '-');
+        int digits = 1;
+        for (long rest = value / 10; rest != 0; rest /= 10)
+            digits++;
+        if (digits > buffer.remaining())
+            throw new BufferOverflowException();
+        // Write the digits backwards, straight into place
+        int start = buffer.position();
+        for (int i = start + digits - 1; i >= start; i--) {
+            buffer.put(i, (byte) ('0' + Math.abs(value % 10)));
+            value /= 10;
+        }
+        buffer.position(start + digits);
+    }
+
     public static int getBencodeSize(Object object) {
     	int size = 0;
         if (object instanceof Long) {
             size = 2 + ((Long) object).toString().getBytes().length;
         }
         if (object instanceof ByteBuffer) {
-            byte[] byteString = ((ByteBuffer) object).array();
-            size = Integer.toString(byteString.length).getBytes().length + 1 + byteString.length;
+            int length = ((ByteBuffer) object).remaining();
+            size = Integer.toString(length).getBytes().length + 1 + length;
         } else if (object instanceof List) {
-            List list = (List) object;
+            List<?> list = (List<?>) object;
             size = 2;
             for (Object elem : list) {
                 size+=getBencodeSize(elem);
             }
         } else if (object instanceof Map) {
-            Map map = (Map) object;
+            Map<?, ?> map = (Map<?, ?>) object;
             size = 2;
 
             SortedMap<ByteBuffer, Object> sortedMap = new TreeMap<ByteBuffer, Object>(new DictionaryComparator());
             // sortedMap.putAll(map);
 
-            for (Object elem : map.entrySet()) {
-                Map.Entry entry = (Map.Entry) elem;
+            for (Map.Entry<?, ?> entry : map.entrySet()) {
                 sortedMap.put((ByteBuffer) entry.getKey(), entry.getValue());
             }
 
-            for (Object elem : sortedMap.entrySet()) {
-                Map.Entry entry = (Map.Entry) elem;
+            for (Map.Entry<ByteBuffer, Object> entry : sortedMap.entrySet()) {
                 size+=getBencodeSize(entry.getKey());
                 size+=getBencodeSize(entry.getValue());
             }
@@ -187,7 +312,7 @@ public class Bencode {
         return list;
     }
 
-    private SortedMap parseDictionary(InputStream is) throws IOException {
+    private SortedMap<ByteBuffer, Object> parseDictionary(InputStream is) throws IOException {
         SortedMap<ByteBuffer, Object> map = new TreeMap<ByteBuffer, Object>(new DictionaryComparator());
         is.mark(0);
         int readChar = is.read();
@@ -224,4 +349,134 @@ public class Bencode {
         }
         return ByteBuffer.wrap(byteString);
     }
+
+    /**
+     * Returns the content of a byte string. The backing array is returned
+     * as is when the buffer spans all of it, otherwise the bytes are copied.
+     */
+    public static byte[] getBytes(ByteBuffer byteString) {
+        if (byteString.hasArray() && byteString.arrayOffset() == 0 && byteString.position() == 0 &&
+                byteString.remaining() == byteString.array().length)
+            return byteString.array();
+        byte[] bytes = new byte[byteString.remaining()];
+        byteString.duplicate().get(bytes);
+        return bytes;
+    }
+
+    public static String getString(ByteBuffer byteString) {
+        if (byteString.hasArray())
+            return new String(byteString.array(), byteString.arrayOffset() + byteString.position(),
+                    byteString.remaining());
+        return new String(getBytes(byteString));
+    }
+
+    private Object parse(int depth) throws IOException {
+        if (depth > MAX_DEPTH)
+            throw new IOException("Bencoded data is nested too deep");
+        int readChar = read();
+        switch (readChar) {
+            case 'i':
+                return parseInteger();
+            case 'l':
+                return parseList(depth);
+            case 'd':
+                return parseDictionary(depth);
+            case '0':
+            case '1':
+            case '2':
+            case '3':
+            case '4':
+            case '5':
+            case '6':
+            case '7':
+            case '8':
+            case '9':
+                position--;
+                return parseByteString();
+            default:
+                throw new IOException("Problem parsing bencoded data");
+        }
+    }
+
+    private int read() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected EOF found");
+        }
+        return input.get(position++) & 0xFF;
+    }
+
+    private Long parseInteger() throws IOException {
+        int readChar = read();
+        boolean negative = readChar == '-';
+        if (negative)
+            readChar = read();
+
+        // Accumulate negatively so Long.MIN_VALUE fits too
+        long value = 0;
+        int digits = 0;
+        while (readChar != 'e') {
+            int digit = readChar - '0';
+            if (digit < 0 || digit > 9 || value < (Long.MIN_VALUE + digit) / 10) {
+                throw new IOException("Problem parsing bencoded integer");
+            }
+            value = value * 10 - digit;
+            digits++;
+            readChar = read();
+        }
+        if (digits == 0 || (!negative && value == Long.MIN_VALUE)) {
+            throw new IOException("Problem parsing bencoded integer");
+        }
+
+        return negative ? value : -value;
+    }
+
+    private List<Object> parseList(int depth) throws IOException {
+        List<Object> list = new LinkedList<Object>();
+        while (peek() != 'e') {
+            list.add(parse(depth + 1));
+        }
+        position++;
+
+        return list;
+    }
+
+    private SortedMap<ByteBuffer, Object> parseDictionary(int depth) throws IOException {
+        SortedMap<ByteBuffer, Object> map = new TreeMap<ByteBuffer, Object>(new DictionaryComparator());
+        while (peek() != 'e') {
+            map.put(parseByteString(), parse(depth + 1));
+        }
+        position++;
+
+        return map;
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected EOF found");
+        }
+        return input.get(position) & 0xFF;
+    }
+
+    private ByteBuffer parseByteString() throws IOException {
+        int readChar = read();
+        int length = 0;
+        do {
+            int digit = readChar - '0';
+            if (digit < 0 || digit > 9 || length > limit) {
+                throw new IOException("Problem parsing bencoded byte string");
+            }
+            length = length * 10 + digit;
+            readChar = read();
+        } while (readChar != ':');
+
+        if (length > limit - position) {
+            throw new IOException("Unexpected EOF found");
+        }
+
+        ByteBuffer byteString = input.duplicate();
+        byteString.limit(position + length);
+        byteString.position(position);
+        position += length;
+        return byteString.slice();
+    }
 }
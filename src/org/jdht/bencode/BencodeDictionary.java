@@ -0,0 +1,289 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.bencode;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A lazy view over a bencoded dictionary.
+ * The dictionary is scanned once to record where every key and value is,
+ * a value is only decoded when it is asked for.
+ * Byte strings are returned as views into the underlying buffer.
+ */
+public class BencodeDictionary {
+
+    private static final int MAX_DEPTH = 64;
+    private static final int ENTRY_SIZE = 4; // key start, key length, value start, value end
+
+    private final ByteBuffer data;
+    private int[] entries = new int[8 * ENTRY_SIZE];
+    private int size = 0;
+    private int position;
+    private int limit;
+
+    /**
+     * This scans the bencoded dictionary at the position of buffer.
+     * The position of buffer is not changed.
+     */
+    public BencodeDictionary(ByteBuffer buffer) throws IOException {
+        this(buffer, buffer.position(), buffer.limit());
+    }
+
+    private BencodeDictionary(ByteBuffer data, int start, int end) throws IOException {
+        this.data = data;
+        position = start;
+        limit = end;
+        if (read() != 'd') {
+            throw new IOException("Problem parsing bencoded dictionary");
+        }
+        while (peek() != 'e') {
+            int keyLength = readLength();
+            int keyStart = position;
+            position += keyLength;
+            int valueStart = position;
+            skipValue(1);
+            addEntry(keyStart, keyLength, valueStart, position);
+        }
+        position++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean containsKey(String key) {
+        return indexOf(key) >= 0;
+    }
+
+    /**
+     * Returns the byte string of key, or null if it is missing or not a byte string
+     */
+    public ByteBuffer getByteString(String key) throws IOException {
+        int index = indexOf(key);
+        if (index < 0 || !isDigit(data.get(valueStart(index))))
+            return null;
+        position = valueStart(index);
+        int length = readLength();
+        return view(position, length);
+    }
+
+    /**
+     * Returns true if the value of key is a byte string equal to value
+     */
+    public boolean matches(String key, String value) throws IOException {
+        int index = indexOf(key);
+        if (index < 0 || !isDigit(data.get(valueStart(index))))
+            return false;
+        position = valueStart(index);
+        int length = readLength();
+        return equals(position, length, value);
+    }
+
+    /**
+     * Returns the integer of key, or null if it is missing or not an integer
+     */
+    public Long getInteger(String key) throws IOException {
+        Object value = get(key);
+        return value instanceof Long ? (Long) value : null;
+    }
+
+    /**
+     * Returns the integer of key, or defaultValue if it is missing or not an integer
+     */
+    public long getLong(String key, long defaultValue) throws IOException {
+        int index = indexOf(key);
+        if (index < 0 || data.get(valueStart(index)) != 'i')
+            return defaultValue;
+        position = valueStart(index) + 1;
+        boolean negative = peek() == '-';
+        if (negative)
+            position++;
+        // Accumulate negatively so Long.MIN_VALUE fits too, digits were checked by the scan
+        long value = 0;
+        int readChar;
+        while ((readChar = read()) != 'e') {
+            int digit = readChar - '0';
+            if (value < (Long.MIN_VALUE + digit) / 10)
+                throw new IOException("Problem parsing bencoded integer");
+            value = value * 10 - digit;
+        }
+        if (!negative && value == Long.MIN_VALUE)
+            throw new IOException("Problem parsing bencoded integer");
+        return negative ? value : -value;
+    }
+
+    /**
+     * Returns the byte strings in the list of key as views, other list elements are skipped.
+     * Returns null if key is missing or not a list.
+     */
+    public List<ByteBuffer> getByteStringList(String key) throws IOException {
+        int index = indexOf(key);
+        if (index < 0 || data.get(valueStart(index)) != 'l')
+            return null;
+        List<ByteBuffer> list = new ArrayList<>();
+        position = valueStart(index) + 1;
+        while (peek() != 'e') {
+            if (isDigit(peek())) {
+                int length = readLength();
+                list.add(view(position, length));
+                position += length;
+            } else {
+                skipValue(1);
+            }
+        }
+        return list;
+    }
+
+    /**
+     * Returns the list of key fully decoded, or null if it is missing or not a list
+     */
+    public List<?> getList(String key) throws IOException {
+        Object value = get(key);
+        return value instanceof List ? (List<?>) value : null;
+    }
+
+    /**
+     * Returns a lazy view of the dictionary of key, or null if it is missing or not a dictionary
+     */
+    public BencodeDictionary getDictionary(String key) throws IOException {
+        int index = indexOf(key);
+        if (index < 0 || data.get(valueStart(index)) != 'd')
+            return null;
+        return new BencodeDictionary(data, valueStart(index), valueEnd(index));
+    }
+
+    /**
+     * Returns the value of key fully decoded, or null if it is missing
+     */
+    public Object get(String key) throws IOException {
+        int index = indexOf(key);
+        if (index < 0)
+            return null;
+        return new Bencode(view(valueStart(index), valueEnd(index) - valueStart(index))).getRootElement();
+    }
+
+    private int indexOf(String key) {
+        for (int i = 0; i < size; i++) {
+            if (equals(entries[i * ENTRY_SIZE], entries[i * ENTRY_SIZE + 1], key))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean equals(int start, int length, String value) {
+        if (length != value.length())
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (data.get(start + i) != value.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    private int valueStart(int index) {
+        return entries[index * ENTRY_SIZE + 2];
+    }
+
+    private int valueEnd(int index) {
+        return entries[index * ENTRY_SIZE + 3];
+    }
+
+    private void addEntry(int keyStart, int keyLength, int valueStart, int valueEnd) {
+        if ((size + 1) * ENTRY_SIZE > entries.length) {
+            int[] newEntries = new int[entries.length * 2];
+            System.arraycopy(entries, 0, newEntries, 0, entries.length);
+            entries = newEntries;
+        }
+        int offset = size * ENTRY_SIZE;
+        entries[offset] = keyStart;
+        entries[offset + 1] = keyLength;
+        entries[offset + 2] = valueStart;
+        entries[offset + 3] = valueEnd;
+        size++;
+    }
+
+    private ByteBuffer view(int start, int length) {
+        ByteBuffer view = data.duplicate();
+        view.limit(start + length);
+        view.position(start);
+        return view.slice();
+    }
+
+    private void skipValue(int depth) throws IOException {
+        if (depth > MAX_DEPTH) {
+            throw new IOException("Bencoded data is nested too deep");
+        }
+        int readChar = peek();
+        switch (readChar) {
+            case 'i':
+                position++;
+                if (peek() == '-')
+                    position++;
+                if (!isDigit(read()))
+                    throw new IOException("Problem parsing bencoded integer");
+                while ((readChar = read()) != 'e') {
+                    if (!isDigit(readChar))
+                        throw new IOException("Problem parsing bencoded integer");
+                }
+                break;
+            case 'l':
+                position++;
+                while (peek() != 'e') {
+                    skipValue(depth + 1);
+                }
+                position++;
+                break;
+            case 'd':
+                position++;
+                while (peek() != 'e') {
+                    int keyLength = readLength();
+                    position += keyLength;
+                    skipValue(depth + 1);
+                }
+                position++;
+                break;
+            default:
+                int length = readLength();
+                position += length;
+        }
+    }
+
+    private int readLength() throws IOException {
+        int readChar = read();
+        int length = 0;
+        do {
+            if (!isDigit(readChar) || length > limit) {
+                throw new IOException("Problem parsing bencoded byte string");
+            }
+            length = length * 10 + readChar - '0';
+            readChar = read();
+        } while (readChar != ':');
+
+        if (length > limit - position) {
+            throw new IOException("Unexpected EOF found");
+        }
+        return length;
+    }
+
+    private int read() throws IOException {
+        int readChar = peek();
+        position++;
+        return readChar;
+    }
+
+    private int peek() throws IOException {
+        if (position >= limit) {
+            throw new IOException("Unexpected EOF found");
+        }
+        return data.get(position) & 0xFF;
+    }
+
+    private static boolean isDigit(int readChar) {
+        return readChar >= '0' && readChar <= '9';
+    }
+}
@@ -19,19 +19,21 @@ public class DictionaryComparator implements Comparator<ByteBuffer> {
     }
 
     public int compare(ByteBuffer o1, ByteBuffer o2) {
-        byte[] byteString1 = o1.array();
-        byte[] byteString2 = o2.array();
-        int minLength = byteString1.length > byteString2.length ? byteString2.length : byteString1.length;
+        int offset1 = o1.position();
+        int offset2 = o2.position();
+        int length1 = o1.remaining();
+        int length2 = o2.remaining();
+        int minLength = length1 > length2 ? length2 : length1;
         for (int i = 0; i < minLength; i++) {
-            int bitCompare = bitCompare(byteString1[i], byteString2[i]);
+            int bitCompare = bitCompare(o1.get(offset1 + i), o2.get(offset2 + i));
             if (bitCompare != 0) {
                 return bitCompare;
             }
         }
 
-        if (byteString1.length > byteString2.length) {
+        if (length1 > length2) {
             return 1;
-        } else if (byteString1.length < byteString2.length) {
+        } else if (length1 < length2) {
             return -1;
         }
         return 0;
@@ -0,0 +1,196 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+import org.jdht.bencode.Bencode;
+
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * Keeps torrents announced. A torrent is announced when a get_peers lookup for it ends,
+ * then re-announced every few minutes to the same closest nodes with the tokens they gave.
+ * A new lookup is run only once the tokens got too old or too few of the nodes still answer.
+ */
+class AnnounceScheduler {
+
+    private final static long REANNOUNCE_INTERVAL = 4*60*1000; // 4 min
+    private final static long REANNOUNCE_JITTER = 60*1000; // +- 1 min, so torrents spread out
+    private final static long TOKEN_MAX_AGE = 9*60*1000; // 9 min, nodes take tokens up to 10 min old
+    private final static int MIN_ANNOUNCE_NODES = 3;
+    private final static long LOOKUP_RETRY_INTERVAL = 2*60*1000; // 2 min, a lookup ends in 1 min at most
+
+    private static class Torrent {
+        public final ByteBuffer infoHash;
+        public Map<Node, ByteBuffer> nodes = null; // Closest nodes and their tokens
+        public long tokensTime = 0;
+        public TimingWheel.Timeout timeout = null;
+
+        public Torrent(ByteBuffer infoHash){
+            this.infoHash = infoHash;
+        }
+    }
+
+    private final WeakReference<DHT> dhtWeakReference;
+    private final TimingWheel timer;
+    private final HashMap<ByteBuffer, Torrent> torrents = new HashMap<>();
+    private final Random random = new Random();
+
+    public AnnounceScheduler(DHT dht, TimingWheel timer){
+        this.dhtWeakReference = new WeakReference<>(dht);
+        this.timer = timer;
+    }
+
+    /**
+     * Announces infoHash from now on, starting with a lookup
+     */
+    public void add(ByteBuffer infoHash){
+        Torrent torrent;
+        synchronized (this){
+            if (torrents.containsKey(infoHash))
+                return;
+            torrent = new Torrent(infoHash);
+            torrents.put(infoHash, torrent);
+        }
+        lookup(torrent);
+    }
+
+    public synchronized void remove(ByteBuffer infoHash){
+        Torrent torrent = torrents.remove(infoHash);
+        if (torrent != null && torrent.timeout != null)
+            torrent.timeout.cancel();
+    }
+
+    public synchronized boolean contains(ByteBuffer infoHash){
+        return torrents.containsKey(infoHash);
+    }
+
+    public synchronized int size(){
+        return torrents.size();
+    }
+
+    public synchronized void clear(){
+        for (Torrent torrent : torrents.values()) {
+            if (torrent.timeout != null)
+                torrent.timeout.cancel();
+        }
+        torrents.clear();
+    }
+
+    /**
+     * A lookup for infoHash announced to nodes, with the tokens they gave just now
+     */
+    public synchronized void announced(ByteBuffer infoHash, Map<Node, ByteBuffer> nodes){
+        Torrent torrent = torrents.get(infoHash);
+        if (torrent == null)
+            return;
+        torrent.nodes = new LinkedHashMap<>(nodes.size());
+        for (Map.Entry<Node, ByteBuffer> entry : nodes.entrySet()) {
+            if (entry.getValue() != null)
+                torrent.nodes.put(entry.getKey(), entry.getValue());
+        }
+        torrent.tokensTime = System.currentTimeMillis();
+        schedule(torrent);
+    }
+
+    private void schedule(final Torrent torrent){
+        if (torrent.timeout != null)
+            torrent.timeout.cancel();
+        long delay = REANNOUNCE_INTERVAL - REANNOUNCE_JITTER + (long) (random.nextDouble() * 2 * REANNOUNCE_JITTER);
+        torrent.timeout = timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                reannounce(torrent);
+            }
+        }, delay);
+    }
+
+    private void reannounce(Torrent torrent){
+        DHT dht = dhtWeakReference.get();
+        if (dht == null)
+            return;
+
+        Map<Node, ByteBuffer> nodes;
+        synchronized (this){
+            if (torrents.get(torrent.infoHash) != torrent)
+                return; // Removed meanwhile
+            torrent.timeout = null;
+            boolean fresh = System.currentTimeMillis() - torrent.tokensTime < TOKEN_MAX_AGE;
+            if (!fresh || torrent.nodes == null || torrent.nodes.size() < MIN_ANNOUNCE_NODES) {
+                nodes = null;
+            } else {
+                nodes = new LinkedHashMap<>(torrent.nodes);
+                schedule(torrent);
+            }
+        }
+
+        if (nodes == null) {
+            if (Logger.verbose)
+                Logger.log("Re-announce of " + Logger.toHex(Bencode.getBytes(torrent.infoHash)) + " needs a lookup");
+            lookup(torrent);
+            return;
+        }
+
+        if (Logger.verbose)
+            Logger.log("Re-announcing " + Logger.toHex(Bencode.getBytes(torrent.infoHash)) +
+                    " to " + nodes.size() + " nodes with cached tokens");
+        for (Map.Entry<Node, ByteBuffer> entry : nodes.entrySet())
+            announce(dht, torrent, entry.getKey(), entry.getValue());
+    }
+
+    private void announce(DHT dht, final Torrent torrent, final Node node, ByteBuffer token){
+        CompletableFuture<KRPCResponse> future = dht.announcePeer(node, torrent.infoHash, token);
+        future.whenComplete(new BiConsumer<KRPCResponse, Throwable>() {
+            @Override
+            public void accept(KRPCResponse response, Throwable throwable) {
+                if (throwable == null)
+                    return;
+                // Gone, or it no longer takes the token, next time it is left out
+                synchronized (AnnounceScheduler.this){
+                    if (torrent.nodes != null)
+                        torrent.nodes.remove(node);
+                }
+            }
+        });
+    }
+
+    private void lookup(final Torrent torrent){
+        DHT dht = dhtWeakReference.get();
+        if (dht == null)
+            return;
+        synchronized (this){
+            if (torrents.get(torrent.infoHash) != torrent)
+                return;
+            // Ends in announced() once the lookup announced, which cancels this.
+            // Should the lookup never announce, it is run again.
+            if (torrent.timeout != null)
+                torrent.timeout.cancel();
+            torrent.timeout = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    retry(torrent);
+                }
+            }, LOOKUP_RETRY_INTERVAL);
+        }
+        dht.getPeers(torrent.infoHash, true);
+    }
+
+    private void retry(Torrent torrent){
+        synchronized (this){
+            if (torrents.get(torrent.infoHash) != torrent)
+                return; // Removed meanwhile
+            torrent.timeout = null;
+        }
+        if (Logger.verbose)
+            Logger.log("Announce lookup for " + Logger.toHex(Bencode.getBytes(torrent.infoHash)) + " never ended, retrying");
+        lookup(torrent);
+    }
+}
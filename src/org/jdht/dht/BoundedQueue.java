@@ -0,0 +1,101 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * A bounded multi producer multi consumer queue that never blocks nor locks.
+ * Every slot carries a sequence number telling whether it is free for the
+ * producer or filled for the consumer of a given round (D. Vyukov's design).
+ */
+public class BoundedQueue<E> {
+
+    private final int mask;
+    private final AtomicReferenceArray<E> elements;
+    private final AtomicLongArray sequences;
+    private final AtomicLong head = new AtomicLong(); // Next to poll
+    private final AtomicLong tail = new AtomicLong(); // Next to offer
+
+    /**
+     * @param capacity rounded up to a power of two
+     */
+    public BoundedQueue(int capacity){
+        if (capacity <= 0)
+            throw new IllegalArgumentException("Bad capacity " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mask = size - 1;
+        elements = new AtomicReferenceArray<>(size);
+        sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            sequences.set(i, i);
+    }
+
+    public int capacity(){
+        return mask + 1;
+    }
+
+    /**
+     * Returns false if the queue is full
+     */
+    public boolean offer(E element){
+        if (element == null)
+            throw new NullPointerException();
+        while (true) {
+            long position = tail.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    elements.lazySet(index, element);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (diff < 0) {
+                // The slot still holds last round's element
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Returns null if the queue is empty
+     */
+    public E poll(){
+        while (true) {
+            long position = head.get();
+            int index = (int) (position & mask);
+            long diff = sequences.get(index) - (position + 1);
+            if (diff == 0) {
+                if (head.compareAndSet(position, position + 1)) {
+                    E element = elements.get(index);
+                    elements.lazySet(index, null);
+                    // Free the slot for the producer of the next round
+                    sequences.set(index, position + mask + 1);
+                    return element;
+                }
+            } else if (diff < 0) {
+                return null;
+            }
+        }
+    }
+
+    public boolean isEmpty(){
+        return head.get() >= tail.get();
+    }
+
+    /**
+     * A snapshot, may be stale by the time it returns
+     */
+    public int size(){
+        long size = tail.get() - head.get();
+        return (int) Math.max(0, Math.min(size, capacity()));
+    }
+}
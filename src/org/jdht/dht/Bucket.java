@@ -5,44 +5,94 @@
 package org.jdht.dht;
 
 
-import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Set;
 
+/**
+ * Changes copy the entries, so readers iterate a set no one changes, without locking.
+ * Changes themselves are made under BucketSet's lock, as are those of the replacements:
+ * nodes that did not fit lately, standing by to take the place of entries that go.
+ */
 class Bucket {
 
     private int rangeBegin;
     private int rangeEnd;
-    private Set<ByteBuffer> entries;
+    private volatile Set<NodeId> entries;
     private int maxEntries;
-    private long lastChanged = 0;
+    private volatile long lastChanged = 0;
+    private final LinkedHashMap<NodeId, Node> replacements = new LinkedHashMap<>(); // Most recent last
 
     public Bucket(int begin, int end, int max) {
         rangeBegin = begin;
         rangeEnd = end;
         maxEntries = max;
-        entries = new HashSet<>();
+        entries = Collections.emptySet();
     }
 
-    public Set<ByteBuffer> getEntries() {
+    public Set<NodeId> getEntries() {
         return Collections.unmodifiableSet(entries);
     }
 
-    public boolean add(ByteBuffer entry) {
-        if (entries.size() >= 2*maxEntries)
+    public boolean add(NodeId entry) {
+        Set<NodeId> current = entries;
+        if (current.size() >= 2*maxEntries)
             return false;
-        boolean added = entries.add(entry);
         setLastChanged();
-        return added;
+        if (current.contains(entry))
+            return false;
+        Set<NodeId> changed = new HashSet<>(current);
+        changed.add(entry);
+        entries = changed;
+        return true;
     }
 
-    public boolean remove(ByteBuffer entry){
-        return entries.remove(entry);
+    public boolean remove(NodeId entry){
+        Set<NodeId> current = entries;
+        if (!current.contains(entry))
+            return false;
+        Set<NodeId> changed = new HashSet<>(current);
+        changed.remove(entry);
+        entries = changed;
+        return true;
     }
 
     public void clear() {
-        entries.clear();
+        entries = Collections.emptySet();
+        replacements.clear();
+    }
+
+    /**
+     * Keeps node as the most recent replacement, the oldest goes when there are too many
+     */
+    public void addReplacement(Node node) {
+        replacements.remove(node.getId());
+        replacements.put(node.getId(), node);
+        if (replacements.size() > maxEntries) {
+            Iterator<NodeId> it = replacements.keySet().iterator();
+            it.next();
+            it.remove();
+        }
+    }
+
+    /**
+     * Takes the most recent replacement out, null if there is none
+     */
+    public Node pollReplacement() {
+        Node last = null;
+        for (Node node : replacements.values())
+            last = node;
+        if (last != null)
+            replacements.remove(last.getId());
+        return last;
+    }
+
+    public List<Node> getReplacements() {
+        return new ArrayList<>(replacements.values());
     }
 
     public boolean isFull(){
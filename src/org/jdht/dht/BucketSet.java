@@ -4,46 +4,66 @@
 
 package org.jdht.dht;
 
-import java.math.BigInteger;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.Comparator;
 import java.util.List;
-import java.util.Set;
 
+/**
+ * The routing table's buckets, by the highest bit an ID differs from ours (its range).
+ * Only the bucket holding our own range splits, so every other range ends up in a bucket
+ * of its own. Table maps each range straight to its bucket and is redone on splits.
+ * Changes are serialized, reads go through the current Table and Bucket entries, neither
+ * of which is changed once published, so they need no lock.
+ */
 public class BucketSet {
 
     private static final int BUCKET_SIZE = 8;
-    private static final int ID_SIZE = 160;
+    private static final int ID_SIZE = NodeId.BITS;
 
     public static interface Trimmer {
         public boolean trim(Bucket b);
     }
 
-    private List<Bucket> buckets;
-    private ByteBuffer myID;
-    private BigInteger myIDInt;
+    public static interface BucketVisitor {
+        /**
+         * False to end the walk
+         */
+        public boolean visit(Bucket b);
+    }
+
+    private static class Table {
+        public final List<Bucket> buckets; // Closest to us first
+        public final Bucket[] byRange = new Bucket[ID_SIZE];
+
+        public Table(List<Bucket> buckets){
+            this.buckets = Collections.unmodifiableList(buckets);
+            for (Bucket b : buckets) {
+                for (int range = b.getRangeBegin(); range <= b.getRangeEnd(); range++)
+                    byRange[range] = b;
+            }
+        }
+    }
+
+    private volatile Table table;
+    private NodeId myID;
     private Trimmer trimmer;
 
-    public BucketSet(ByteBuffer myID, Trimmer trimmer){
+    public BucketSet(NodeId myID, Trimmer trimmer){
         this.myID = myID;
-        this.myIDInt = new BigInteger(1, myID.array());
         this.trimmer = trimmer;
-        buckets = new ArrayList<Bucket>(4);
-        buckets.add(new Bucket(0, ID_SIZE-1, BUCKET_SIZE));
+        table = new Table(Collections.singletonList(new Bucket(0, ID_SIZE-1, BUCKET_SIZE)));
     }
 
 
     public int size() {
         int count = 0;
-        for (Bucket b : buckets) {
+        for (Bucket b : table.buckets) {
             count += b.size();
         }
         return  count;
     }
 
-    public boolean add(ByteBuffer id) {
+    public synchronized boolean add(NodeId id) {
         Bucket b = getBucket(id);
         if (b == null)
             return false;
@@ -51,99 +71,111 @@ public class BucketSet {
             return false;
         if (b.add(id)) {
             if (shouldSplit(b)){
-                return split(b.getRangeBegin(), id);
+                return split(b, id);
             }
             return true;
         }
         return false;
     }
 
-    public boolean remove(ByteBuffer id) {
+    public synchronized boolean remove(NodeId id) {
         Bucket b = getBucket(id);
         return b != null && b.remove(id);
     }
 
-    public void clear() {
-        for (Bucket b : buckets)
-            b.clear();
-        buckets.clear();
-        buckets.add(new Bucket(0, ID_SIZE-1, BUCKET_SIZE));
+    /**
+     * Keeps node, which did not fit, standing by in its bucket
+     */
+    public synchronized void addReplacement(Node node) {
+        Bucket b = getBucket(node.getId());
+        if (b != null && !b.getEntries().contains(node.getId()))
+            b.addReplacement(node);
     }
 
-    public List<Bucket> getBuckets(){
-        return Collections.unmodifiableList(buckets);
+    /**
+     * The most recent node standing by in the bucket where id goes, taken out. Null if none.
+     */
+    public synchronized Node pollReplacement(NodeId id) {
+        Bucket b = getBucket(id);
+        return b == null ? null : b.pollReplacement();
     }
 
-    public List<ByteBuffer> getClosest(int max) {
-        List<ByteBuffer> closest = new ArrayList<>(max);
-        int count = 0;
-
-        // start at first (closest) bucket
-        for (int i = 0; i < buckets.size() && count < max; i++) {
-            Set<ByteBuffer> entries = buckets.get(i).getEntries();
-            // add the whole bucket,
-            // extras will be trimmed after sorting
-            for (ByteBuffer e : entries) {
-                closest.add(e);
-                count++;
-            }
-        }
-
-        XORComparator comp = new XORComparator(myID);
-        Collections.sort(closest, comp);
-        int sz = closest.size();
-        for (int i = sz - 1; i >= max; i--) {
-            closest.remove(i);
-        }
-        return closest;
+    public synchronized void clear() {
+        for (Bucket b : table.buckets)
+            b.clear();
+        table = new Table(Collections.singletonList(new Bucket(0, ID_SIZE-1, BUCKET_SIZE)));
     }
 
-    public List<ByteBuffer> getClosest(ByteBuffer id, int max) {
-        if (id.equals(myID))
-            return getClosest(max);
-        List<ByteBuffer> closest = new ArrayList<>(max);
-        int count = 0;
-        int start = getBucketIndex(id);
-        // start at closest bucket, then to the smaller (closer to us) buckets
-        for (int i = start; i >= 0 && count < max; i--) {
-            Set<ByteBuffer> entries = buckets.get(i).getEntries();
-            for (ByteBuffer e : entries) {
-                closest.add(e);
-                count++;
+    public List<Bucket> getBuckets(){
+        return table.buckets;
+    }
+
+    public List<NodeId> getClosest(int max) {
+        return getClosest(myID, max);
+    }
+
+    public List<NodeId> getClosest(NodeId id, int max) {
+        ClosestIds closest = new ClosestIds(id, max);
+        walkByDistance(id, closest);
+        List<NodeId> list = new ArrayList<>(closest.count);
+        for (int i = 0; i < closest.count; i++)
+            list.add(closest.ids[i]);
+        return list;
+    }
+
+    /**
+     * Visits the buckets by XOR distance to target, closest first. Every ID in a bucket is
+     * closer to target than those in the buckets after it, so the walk can stop once it
+     * has enough.
+     */
+    public void walkByDistance(NodeId target, BucketVisitor visitor) {
+        Table table = this.table;
+        Bucket[] byRange = table.byRange;
+        int range = getRange(target); // -1 for our own ID
+        int shared = table.buckets.get(0).getRangeEnd(); // Ranges up to here are all in bucket 0
+        if (range > shared) {
+            // target's bucket. Then those of lower ranges where target differs from us, IDs
+            // there match target at that bit, unlike all the ranges below
+            if (!visitor.visit(byRange[range]))
+                return;
+            for (int r = range - 1; r > shared; r--) {
+                if (myID.testBit(r) != target.testBit(r) && !visitor.visit(byRange[r]))
+                    return;
             }
         }
-        // then the farther from us buckets if necessary
-        for (int i = start + 1; i < buckets.size() && count < max; i++) {
-            Set<ByteBuffer> entries = buckets.get(i).getEntries();
-            for (ByteBuffer e : entries) {
-                closest.add(e);
-                count++;
+        if (!visitor.visit(table.buckets.get(0)))
+            return;
+        // Lower ranges where target is like us, then the ranges above target's, farther each
+        for (int r = shared + 1; r < ID_SIZE; r++) {
+            if (r > range || r < range && myID.testBit(r) == target.testBit(r)) {
+                if (!visitor.visit(byRange[r]))
+                    return;
             }
         }
-        XORComparator comp = new XORComparator(id);
-        Collections.sort(closest, comp);
-        int sz = closest.size();
-        for (int i = sz - 1; i >= max; i--) {
-            closest.remove(i);
-        }
-        return closest;
     }
 
-    private boolean split(int range, ByteBuffer added){
-        int bucketIdx = getBucketIndex(range);
-        while (shouldSplit(buckets.get(bucketIdx))) {
-            Bucket b = buckets.get(bucketIdx);
-
+    private boolean split(Bucket b, NodeId added){
+        while (shouldSplit(b)) {
             Bucket b1 = new Bucket(b.getRangeBegin(), b.getRangeEnd()-1, BUCKET_SIZE);
             Bucket b2 = new Bucket(b.getRangeEnd(), b.getRangeEnd(), BUCKET_SIZE);
-            for (ByteBuffer id : b.getEntries()) {
+            for (NodeId id : b.getEntries()) {
                 if (getRange(id) < b2.getRangeBegin())
                     b1.add(id);
                 else
                     b2.add(id);
             }
+            for (Node node : b.getReplacements()) {
+                if (getRange(node.getId()) < b2.getRangeBegin())
+                    b1.addReplacement(node);
+                else
+                    b2.addReplacement(node);
+            }
+            // Readers keep seeing b whole until the new table is out
+            List<Bucket> buckets = new ArrayList<>(table.buckets);
+            int bucketIdx = buckets.indexOf(b);
             buckets.set(bucketIdx, b1);
             buckets.add(bucketIdx + 1, b2);
+            table = new Table(buckets);
 
             if (b2.size() > BUCKET_SIZE){
                 b2.remove(added);
@@ -153,6 +185,7 @@ public class BucketSet {
                     return false;
                 }
             }
+            b = b1;
         }
         return true;
     }
@@ -163,57 +196,48 @@ public class BucketSet {
     }
 
 
-    private Bucket getBucket(ByteBuffer id) {
-        int bucketIdx = getBucketIndex(id);
-        if (bucketIdx < 0)
-            return null;
-        return buckets.get(bucketIdx);
-    }
-
-    private int getBucketIndex(int range) {
-            for (int i = buckets.size() - 1; i >= 0; i--) {
-                Bucket b = buckets.get(i);
-                if (range >= b.getRangeBegin() && range <= b.getRangeEnd())
-                    return i;
-            }
-            return -1;
-    }
-
-    private int getBucketIndex(ByteBuffer id) {
+    private Bucket getBucket(NodeId id) {
         int range = getRange(id);
         if (range < 0)
-            return -1;
-        int bucketIdx = getBucketIndex(range);
-        if (bucketIdx < 0)
-            throw new IllegalStateException("ID does not fit in any bucket");
-        return bucketIdx;
-
+            return null;
+        return table.byRange[range];
     }
 
-    private int getRange(ByteBuffer id){
-        BigInteger compRes = myIDInt.xor(new BigInteger(1, id.array()));
-        return compRes.bitLength() - 1;
+    private int getRange(NodeId id){
+        // Index of the highest bit that differs from our ID, -1 if equal
+        return myID.highestDifferingBit(id);
     }
 
-    public static class XORComparator implements Comparator<ByteBuffer> {
-        private final byte[] target;
+    // The max closest IDs, in order, as the walk goes
+    private static class ClosestIds implements BucketVisitor {
+        private final NodeId target;
+        private final NodeId[] ids;
+        private int count = 0;
 
-        public XORComparator(ByteBuffer target) {
-            this.target = target.array();
+        public ClosestIds(NodeId target, int max){
+            this.target = target;
+            this.ids = new NodeId[max];
         }
 
-        public int compare(ByteBuffer a, ByteBuffer b) {
-            byte a_ba[] = a.array();
-            byte b_ba[] = b.array();
-            for (int i = 0; i < target.length; i++) {
-                int ld = (a_ba[i] ^ target[i]) & 0xff;
-                int rd = (b_ba[i] ^ target[i]) & 0xff;
-                if (ld < rd)
-                    return -1;
-                if (ld > rd)
-                    return 1;
+        @Override
+        public boolean visit(Bucket b) {
+            for (NodeId id : b.getEntries()) {
+                int i = count < ids.length ? count++ : ids.length;
+                while (i > 0 && NodeId.compareDistance(target, id, ids[i - 1]) < 0) {
+                    if (i < ids.length)
+                        ids[i] = ids[i - 1];
+                    i--;
+                }
+                if (i < ids.length)
+                    ids[i] = id;
             }
-            return 0;
+            return count < ids.length;
+        }
+    }
+
+    public static class XORComparator extends NodeId.DistanceComparator {
+        public XORComparator(NodeId target) {
+            super(target);
         }
     }
 }
@@ -0,0 +1,56 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * A pool of equally sized direct buffers.
+ * Buffers are allocated on demand and at most maxPooled of them are kept for reuse.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final ByteBuffer[] buffers;
+    private int count = 0;
+
+    public BufferPool(int bufferSize, int maxPooled){
+        this.bufferSize = bufferSize;
+        this.buffers = new ByteBuffer[maxPooled];
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * Returns a cleared buffer of getBufferSize() bytes
+     */
+    public ByteBuffer acquire(){
+        synchronized (buffers){
+            if (count > 0){
+                ByteBuffer buffer = buffers[--count];
+                buffers[count] = null;
+                buffer.clear();
+                return buffer;
+            }
+        }
+        return ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /**
+     * Gives buffer back to the pool, it must not be used afterwards.
+     * Buffers of another size are dropped.
+     */
+    public void release(ByteBuffer buffer){
+        if (buffer.capacity() != bufferSize || !buffer.isDirect())
+            return;
+        synchronized (buffers){
+            if (count < buffers.length)
+                buffers[count++] = buffer;
+        }
+    }
+}
@@ -5,64 +5,127 @@
 package org.jdht.dht;
 
 
+import org.jdht.bencode.Bencode;
+
 import java.io.*;
 import java.lang.ref.WeakReference;
+import java.lang.reflect.Method;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
 
 public class DHT implements Runnable {
 
     private final static long TICK_THREAD_SLEEP = 5000; // 5 sec
     private final static int NUM_RETURN_NODES = 8;
     private final static long EXPLORER_NODE_INTERVAL = 3000; // 3 sec
-    private final static long BLACKLIST_CLEAN_INTERVAL = 60*1000; // 60 sec
-    private final static long TOKENS_CLEAN_INTERVAL = 65*1000; // 65 sec
-    private final static long ANNOUNCE_INTERVAL = 70*1000; // 70 sec
     private final static long BLACKLIST_TIMEOUT = 10*60*1000; // 10 mins
     private final static long TOKEN_TIMEOUT = 10*60*1000; // 10 mins
+    private final static long TOKENS_CLEAN_INTERVAL = 65*1000; // 65 sec
     private final static int DEFAULT_GETPEERS_DEPTH = 5;
     private final static int DEFAULT_GETPEERS_MAXPEERS = 50;
+    private final static int LOOKUP_SEED_NODES = 16;
+
+    public static enum ExecutionMode {
+        /** Handlers run on KRPC's own threads */
+        PLATFORM_THREADS,
+        /** Handlers run on virtual threads, needs Java 21 or newer */
+        VIRTUAL_THREADS,
+        /** Handlers run on an Executor supplied by the caller */
+        EXECUTOR
+    }
 
-    private static class GetPeersOpaque {
-        public int depth;
-        public PeerQuery peerQuery;
+    // Carried by lookup queries back to the ResponseReceiver
+    private static class LookupOpaque {
+        public Lookup lookup;
+        public PeerQuery peerQuery; // null for find_node lookups
     }
 
     private Node myNode = null;
     private KRPC krpc = null;
+    private final TimingWheel timer = new TimingWheel();
     private ResponseReceiver responseReceiver;
     private NodeList nodeList;
     private PeerList peerList;
-    private final HashMap<ByteBuffer, Long> blacklist;
+    private final HashMap<NodeId, Long> blacklist;
     private final HashMap<ByteBuffer, Token> outgoingTokens;
-    private final List<PeerQuery> peerQueries;
-    private long lastBlacklistClean = 0;
-    private long lastTokensClean = 0;
-    private long lastAnnounce = 0;
+    private final Map<ByteBuffer, PeerQuery> peerQueries; // Running get_peers, by info_hash
+    private final PeerCache peerCache = new PeerCache(timer);
+    private volatile boolean peerCacheRefresh = true;
+    private final AnnounceScheduler announceScheduler = new AnnounceScheduler(this, timer);
+    private final Set<Lookup> hungryLookups = ConcurrentHashMap.newKeySet(); // Running lookups short of candidates
     private Thread thread;
+    private long lastTokensClean = 0;
     private int peerPort;
     private AtomicBoolean stopped = new AtomicBoolean(true);
     private DHTPeersReceiver peersReceiver;
     private File dhtFile = null;
+    private KRPCQuery.Ping pingQuery = null;
+    private final ExecutionMode executionMode;
+    private final Executor executor; // The caller's, null unless ExecutionMode.EXECUTOR
+    private volatile ExecutorService virtualThreads = null; // Ours while started with VIRTUAL_THREADS
+    private volatile int hedgeBudget = Lookup.DEFAULT_HEDGE_BUDGET;
+
+    /**
+     * Handlers, explorers and DHTPeersReceiver callbacks run according to executionMode.
+     * Use the constructor taking an Executor for ExecutionMode.EXECUTOR.
+     */
+    public DHT(File dhtFile, Node myNode, int peerPort, DHTPeersReceiver peersReceiver, ExecutionMode executionMode){
+        this(dhtFile, myNode, peerPort, peersReceiver, executionMode, null);
+    }
 
-    public DHT(File dhtFile, Node myNode, int peerPort, DHTPeersReceiver peersReceiver){
+    /**
+     * Handlers, explorers and DHTPeersReceiver callbacks run on executor, which the caller shuts down
+     */
+    public DHT(File dhtFile, Node myNode, int peerPort, DHTPeersReceiver peersReceiver, Executor executor){
+        this(dhtFile, myNode, peerPort, peersReceiver, ExecutionMode.EXECUTOR, executor);
+    }
+
+    private DHT(File dhtFile, Node myNode, int peerPort, DHTPeersReceiver peersReceiver, ExecutionMode executionMode,
+                Executor executor){
+        if (executionMode == ExecutionMode.EXECUTOR && executor == null)
+            throw new IllegalArgumentException("No executor given");
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS && !isVirtualThreadsSupported())
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or newer");
         this.myNode = myNode;
         this.peerPort = peerPort;
         this.peersReceiver = peersReceiver;
         this.dhtFile = dhtFile;
-        krpc = new KRPC(myNode.getPort(), new QueryReceiver(this));
+        this.executionMode = executionMode;
+        this.executor = executor;
+        krpc = new KRPC(myNode.getPort(), new QueryReceiver(this), KRPC.TransportMode.DATAGRAM_CHANNEL, timer);
+        if (executor != null)
+            krpc.setExecutor(executor);
+        // Timer tasks ping, send and complete futures, they run where the handlers do
+        timer.setExecutor(krpc);
         responseReceiver = new ResponseReceiver(this);
         blacklist = new HashMap<>();
         outgoingTokens = new HashMap<>();
-        peerQueries = new LinkedList<>();
+        peerQueries = new HashMap<>();
+    }
+
+    public DHT(File dhtFile, Node myNode, int peerPort, DHTPeersReceiver peersReceiver){
+        this(dhtFile, myNode, peerPort, peersReceiver, ExecutionMode.PLATFORM_THREADS);
     }
 
     public DHT(Node myNode, int peerPort, DHTPeersReceiver peersReceiver){
@@ -79,9 +142,15 @@ public class DHT implements Runnable {
 
     public void start() throws SocketException {
         List<Node> savedNodes = readRoutingTable(); // First thing to do since myNode changes
+        pingQuery = new KRPCQuery.Ping(myNode.getNodeId());
         stopped.set(false);
-        nodeList = new NodeList(myNode.getNodeId());
-        peerList = new PeerList();
+        nodeList = new NodeList(myNode.getId(), timer, this);
+        peerList = new PeerList(timer);
+        timer.start();
+        if (executionMode == ExecutionMode.VIRTUAL_THREADS) {
+            virtualThreads = newVirtualThreadExecutor();
+            krpc.setExecutor(virtualThreads);
+        }
         krpc.start();
         thread = new Thread(this);
         thread.setName("DHT_Ticker");
@@ -91,11 +160,81 @@ public class DHT implements Runnable {
             addNodes(savedNodes);
     }
 
+    /**
+     * Selects how KRPC talks to the network, must be called before start()
+     */
+    public void setTransportMode(KRPC.TransportMode transportMode){
+        krpc.setTransportMode(transportMode);
+    }
+
+    /**
+     * Number of threads handling incoming messages, must be called before start()
+     */
+    public void setHandlerThreads(int handlerThreads){
+        krpc.setHandlerThreads(handlerThreads);
+    }
+
+    /**
+     * How many slow queries a lookup may hedge by querying the next candidate, 0 turns hedging off
+     */
+    public void setHedgeBudget(int hedgeBudget){
+        if (hedgeBudget < 0)
+            throw new IllegalArgumentException("Bad hedge budget " + hedgeBudget);
+        this.hedgeBudget = hedgeBudget;
+    }
+
+    public int getHedgeBudget(){
+        return hedgeBudget;
+    }
+
+    /**
+     * Peers of recent lookups, getPeers() answers from it unless announcing
+     */
+    public PeerCache getPeerCache(){
+        return peerCache;
+    }
+
+    /**
+     * Whether a cache hit past half its time to live starts a lookup in the background, on by default
+     */
+    public void setPeerCacheRefresh(boolean peerCacheRefresh){
+        this.peerCacheRefresh = peerCacheRefresh;
+    }
+
+    public ExecutionMode getExecutionMode(){
+        return executionMode;
+    }
+
+    public static boolean isVirtualThreadsSupported(){
+        try {
+            Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    private static ExecutorService newVirtualThreadExecutor(){
+        // Looked up at runtime, we still build for older Java
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (ExecutorService) method.invoke(null);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads are not available", e);
+        }
+    }
+
     public void stop(){
         saveRoutingTable();
         stopped.set(true);
         thread.interrupt();
         krpc.stop();
+        timer.stop();
+        if (virtualThreads != null) {
+            // Ours, unlike a caller supplied one
+            virtualThreads.shutdown();
+            virtualThreads = null;
+        }
         nodeList.clear();
         nodeList = null;
         peerList.clear();
@@ -107,8 +246,14 @@ public class DHT implements Runnable {
             outgoingTokens.clear();
         }
         synchronized (peerQueries){
+            // Let whoever waits have what was found
+            for (PeerQuery peerQuery : peerQueries.values())
+                peerQuery.complete();
             peerQueries.clear();
         }
+        hungryLookups.clear();
+        announceScheduler.clear();
+        peerCache.clear();
     }
 
     @Override
@@ -119,11 +264,8 @@ public class DHT implements Runnable {
                 Logger.log("Have " + nodeList.size() + " nodes in " +
                         nodeList.numOfBuckets() + " buckets.");
 
-            krpc.tick();
             nodeList.tick(this);
-            peerList.tick();
-            tick();
-
+            cleanTokens();
 
             try {
                 Thread.sleep(TICK_THREAD_SLEEP);
@@ -133,6 +275,27 @@ public class DHT implements Runnable {
         }
     }
 
+    // One pass every TOKENS_CLEAN_INTERVAL rather than a timer per token
+    private void cleanTokens(){
+        long now = System.currentTimeMillis();
+        if (lastTokensClean >= now - TOKENS_CLEAN_INTERVAL)
+            return;
+        lastTokensClean = now;
+        int removed = 0;
+        synchronized (outgoingTokens){
+            Iterator<Token> it = outgoingTokens.values().iterator();
+            while (it.hasNext()) {
+                if (it.next().getGeneratedTime() < now - TOKEN_TIMEOUT) {
+                    it.remove();
+                    removed++;
+                }
+            }
+            if (Logger.verbose && removed > 0)
+                Logger.log("Clean tokens: " + removed + " out of " +
+                        (outgoingTokens.size() + removed) + " items removed.");
+        }
+    }
+
     private List<Node> readRoutingTable(){
         if (dhtFile == null || !dhtFile.exists())
             return null;
@@ -187,10 +350,10 @@ public class DHT implements Runnable {
             fos = new FileOutputStream(dhtFile);
 
             // First write our own node id - 20 bytes
-            fos.write(myNode.getNodeId().array());
+            fos.write(Bencode.getBytes(myNode.getNodeId()));
 
             // Find the 100 closest nodes
-            List<Node> nodes = nodeList.findClosest(myNode.getNodeId(), 100);
+            List<Node> nodes = nodeList.findClosest(myNode.getId(), 100);
 
             if (nodes == null || nodes.size() == 0)
                 return;
@@ -215,126 +378,359 @@ public class DHT implements Runnable {
 
     }
 
-    private void tick(){
-        long now = System.currentTimeMillis();
-
-        // Clean blacklist
-        if (lastBlacklistClean < now - BLACKLIST_CLEAN_INTERVAL){
-            synchronized (blacklist){
-                List<ByteBuffer> removeItems = new LinkedList<>();
-                for (Map.Entry<ByteBuffer, Long> entry : blacklist.entrySet()){
-                    if (entry.getValue() < now - BLACKLIST_TIMEOUT)
-                        removeItems.add(entry.getKey());
+    public void addToBlackList(final NodeId id){
+        final Long added = System.currentTimeMillis();
+        synchronized (blacklist){
+            blacklist.put(id, added);
+        }
+        timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                // Only if it was not blacklisted again since
+                synchronized (blacklist){
+                    blacklist.remove(id, added);
                 }
+            }
+        }, BLACKLIST_TIMEOUT);
+    }
 
-                for (ByteBuffer id : removeItems)
-                    blacklist.remove(id);
+    public void removeFromBlackList(NodeId id){
+        synchronized (blacklist){
+            blacklist.remove(id);
+        }
+    }
 
-                if (Logger.verbose)
-                    Logger.log("Clean blacklist: " + removeItems.size() + " out of " +
-                            (blacklist.size() + removeItems.size()) + " items removed.");
-            }
-            lastBlacklistClean = now;
+    public boolean isInBlackList(NodeId id){
+        synchronized (blacklist){
+            return blacklist.keySet().contains(id);
         }
+    }
 
-        // Clean tokens
-        if (lastTokensClean < now - TOKENS_CLEAN_INTERVAL){
-            synchronized (outgoingTokens){
-                List<ByteBuffer> removeItems = new LinkedList<>();
-                for (Map.Entry<ByteBuffer, Token> entry : outgoingTokens.entrySet()){
-                    if (entry.getValue().getGeneratedTime() < now - TOKEN_TIMEOUT)
-                        removeItems.add(entry.getKey());
-                }
+    public Node getMyNode(){
+        return myNode;
+    }
 
-                for (ByteBuffer token : removeItems)
-                    outgoingTokens.remove(token);
+    public void getPeers(ByteBuffer info_hash, boolean announce){
+        getPeers(info_hash, announce, DEFAULT_GETPEERS_DEPTH, DEFAULT_GETPEERS_MAXPEERS);
+    }
 
-                if (Logger.verbose)
-                    Logger.log("Clean tokens: " + removeItems.size() + " out of " +
-                            (outgoingTokens.size() + removeItems.size()) + " items removed.");
-            }
-            lastTokensClean = now;
+    /**
+     * Runs an iterative get_peers lookup. Peers are reported to the DHTPeersReceiver as they come,
+     * the returned future completes with all of them once the lookup ends.
+     * depth is no longer used, the lookup runs until the closest nodes answered or maxPeers were found.
+     */
+    public CompletableFuture<List<PeerInfo>> getPeers(ByteBuffer info_hash, boolean announce, int depth, int maxPeers){
+        return getPeers(info_hash, announce, maxPeers, null);
+    }
+
+    /**
+     * Like getPeers(), but a lookup already running for info_hash is joined rather than
+     * a new one started. receiver (may be null) gets the peers found so far right away,
+     * then the new ones, on top of the DHTPeersReceiver given to the DHT.
+     * Unless announcing, peers a lookup found lately are answered from the PeerCache without a lookup.
+     */
+    public CompletableFuture<List<PeerInfo>> getPeers(ByteBuffer info_hash, boolean announce, int maxPeers,
+                                                      DHTPeersReceiver receiver){
+        ByteBuffer key = ByteBuffer.wrap(Bencode.getBytes(info_hash));
+        // Announcing needs tokens, only a lookup gets them
+        if (!announce) {
+            PeerCache.Entry cached = peerCache.get(key);
+            // A lookup cut short may have left peers for those asking more
+            if (cached != null && (cached.isComplete() || cached.getPeers().size() >= maxPeers))
+                return fromCache(key, cached, receiver);
+        }
+        return joinLookup(key, announce, maxPeers, receiver);
+    }
+
+    private CompletableFuture<List<PeerInfo>> fromCache(final ByteBuffer key, PeerCache.Entry cached, DHTPeersReceiver receiver){
+        final List<PeerInfo> peers = cached.getPeers();
+        if (Logger.verbose)
+            Logger.log("get_peers: " + peers.size() + " cached peers for " + Logger.toHex(Bencode.getBytes(key)));
+
+        if (receiver != null)
+            receiver.gotPeersFromDHT(key, peers);
+        final DHTPeersReceiver peersReceiver = this.peersReceiver;
+        if (peersReceiver != null) {
+            execute(new Runnable() {
+                @Override
+                public void run() {
+                    peersReceiver.gotPeersFromDHT(key, peers);
+                }
+            });
         }
 
-        // Announce
-        if (lastAnnounce < now - ANNOUNCE_INTERVAL){
+        // Getting old, have it fresh by the time it expires
+        if (peerCacheRefresh && System.currentTimeMillis() - cached.getTime() > peerCache.getTtl() / 2)
+            joinLookup(key, false, DEFAULT_GETPEERS_MAXPEERS, null);
+
+        return CompletableFuture.completedFuture((List<PeerInfo>) new ArrayList<>(peers));
+    }
+
+    private CompletableFuture<List<PeerInfo>> joinLookup(ByteBuffer key, boolean announce, int maxPeers,
+                                                         DHTPeersReceiver receiver){
+        while (true) {
+            PeerQuery peerQuery;
+            boolean created = false;
             synchronized (peerQueries){
-                List<PeerQuery> removeItems = new LinkedList<>();
-                for (PeerQuery peerQuery : peerQueries){
-                    if (!peerQuery.shouldContinue()){
-                        removeItems.add(peerQuery);
-                        if (peerQuery.isAnnounce())
-                            announce(peerQuery);
-                    }
+                peerQuery = peerQueries.get(key);
+                if (peerQuery == null) {
+                    peerQuery = new PeerQuery(key);
+                    peerQuery.setLookup(new Lookup(key, new GetPeersLookup(peerQuery)));
+                    peerQueries.put(key, peerQuery);
+                    created = true;
                 }
+            }
 
-                peerQueries.removeAll(removeItems);
-
-                if (Logger.verbose)
-                    Logger.log("Announcer: " + removeItems.size() + " out of " +
-                            (peerQueries.size() + removeItems.size()) + " items removed.");
+            CompletableFuture<List<PeerInfo>> future = peerQuery.subscribe(maxPeers, announce, receiver);
+            if (future == null) {
+                // Ended while we got to it
+                synchronized (peerQueries){
+                    peerQueries.remove(key, peerQuery);
+                }
+                continue;
             }
-            lastAnnounce = now;
-        }
 
+            if (created)
+                startLookup(peerQuery.getLookup(), LOOKUP_SEED_NODES, PeerQuery.MAX_QUERY_TIME);
+            else if (Logger.verbose)
+                Logger.log("get_peers: Joined running lookup for " + Logger.toHex(Bencode.getBytes(key)));
+            return future;
+        }
     }
 
-    public void addToBlackList(ByteBuffer id){
-        synchronized (blacklist){
-            blacklist.put(id, System.currentTimeMillis());
+    /**
+     * Leaves the lookup receiver joined through getPeers(), its future completes with
+     * the peers found so far. The lookup stops early once no one is left waiting on it.
+     */
+    public void unsubscribe(ByteBuffer info_hash, DHTPeersReceiver receiver){
+        if (receiver == null)
+            return;
+        PeerQuery peerQuery;
+        synchronized (peerQueries){
+            peerQuery = peerQueries.get(info_hash);
         }
+        if (peerQuery != null)
+            peerQuery.unsubscribe(receiver);
     }
 
-    public void removeFromBlackList(ByteBuffer id){
-        synchronized (blacklist){
-            blacklist.remove(id);
+    /**
+     * Streams the peers of a get_peers lookup for info_hash, as many as the subscriber requests.
+     * Each subscriber joins the running lookup or starts one. Peers are delivered on the DHT's
+     * executor, or on the common pool if there is none.
+     */
+    public Flow.Publisher<PeerInfo> getPeersPublisher(ByteBuffer info_hash, int maxPeers){
+        Executor executor = getExecutor();
+        return new PeerPublisher(this, ByteBuffer.wrap(Bencode.getBytes(info_hash)), maxPeers,
+                executor != null ? executor : ForkJoinPool.commonPool());
+    }
+
+    /**
+     * get_peers for many info_hashes, higher priorities first. Lookups are started a few at a time
+     * so that the batch never has more than maxInFlightQueries queries in flight.
+     * listener (may be null) is told as each lookup ends.
+     */
+    public PeerBatch getPeers(Collection<PeerBatch.Request> requests, int maxInFlightQueries, PeerBatch.Listener listener){
+        // A lookup has alpha queries in flight, plus the slow ones it hedged
+        PeerBatch batch = new PeerBatch(this, requests, maxInFlightQueries, Lookup.DEFAULT_ALPHA + hedgeBudget, listener);
+        batch.start();
+        return batch;
+    }
+
+    /**
+     * Runs an iterative find_node lookup, the future completes with the closest nodes to target that answered
+     */
+    public CompletableFuture<List<Node>> lookup(ByteBuffer target){
+        return lookup(target, LOOKUP_SEED_NODES);
+    }
+
+    private CompletableFuture<List<Node>> lookup(ByteBuffer target, int seedNodes){
+        FindNodeLookup querier = new FindNodeLookup(target);
+        startLookup(new Lookup(target, querier), seedNodes, PeerQuery.MAX_QUERY_TIME);
+        return querier.future;
+    }
+
+    private void startLookup(final Lookup lookup, int seedNodes, long maxTime){
+        lookup.addCandidates(nodeList.findClosest(lookup.getTargetId(), seedNodes));
+        lookup.setHedging(timer, krpc.getLatencyTracker(), hedgeBudget);
+        lookup.setHungryIndex(hungryLookups);
+        lookup.start();
+        lookup.setTimeout(timer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                lookup.finish();
+            }
+        }, maxTime));
+    }
+
+    private class FindNodeLookup implements Lookup.Querier {
+
+        private final KRPCQuery query;
+        private final CompletableFuture<List<Node>> future = new CompletableFuture<>();
+
+        public FindNodeLookup(ByteBuffer target){
+            query = new KRPCQuery.FindNode(myNode.getNodeId(), target);
+        }
+
+        @Override
+        public boolean query(Lookup lookup, Node node) {
+            LookupOpaque opaque = new LookupOpaque();
+            opaque.lookup = lookup;
+            return send(node, query, opaque);
+        }
+
+        @Override
+        public void finished(Lookup lookup) {
+            if (Logger.verbose)
+                Logger.log("find_node lookup done after " + lookup.getQueriesSent() + " queries, " +
+                        lookup.getHedgesSent() + " hedged.");
+            future.complete(lookup.getClosest());
         }
     }
 
-    public boolean isInBlackList(ByteBuffer id){
-        synchronized (blacklist){
-            return blacklist.keySet().contains(id);
+    private class GetPeersLookup implements Lookup.Querier {
+
+        private final PeerQuery peerQuery;
+        private final KRPCQuery query;
+
+        public GetPeersLookup(PeerQuery peerQuery){
+            this.peerQuery = peerQuery;
+            query = new KRPCQuery.GetPeers(myNode.getNodeId(), peerQuery.getInfoHash());
+        }
+
+        @Override
+        public boolean query(Lookup lookup, Node node) {
+            LookupOpaque opaque = new LookupOpaque();
+            opaque.lookup = lookup;
+            opaque.peerQuery = peerQuery;
+            if (Logger.verbose)
+                Logger.log("Sent query get_peers: Requested infohash " +
+                        Logger.toHex(Bencode.getBytes(peerQuery.getInfoHash())) + " from " + node.getIp().toString());
+            return send(node, query, opaque);
+        }
+
+        @Override
+        public void finished(Lookup lookup) {
+            synchronized (peerQueries){
+                peerQueries.remove(peerQuery.getInfoHash(), peerQuery);
+            }
+            if (Logger.verbose)
+                Logger.log("get_peers lookup done after " + lookup.getQueriesSent() + " queries, " +
+                        lookup.getHedgesSent() + " hedged.");
+            // Unless out of time, a lookup not converged stopped as its callers had enough peers
+            if (!stopped.get())
+                peerCache.put(peerQuery.getInfoHash(), peerQuery.getPeers(),
+                        lookup.isConverged() || peerQuery.isOutOfTime());
+            Map<Node, ByteBuffer> announceNodes = peerQuery.complete();
+            if (!stopped.get() && announceNodes != null)
+                announce(peerQuery.getInfoHash(), announceNodes);
         }
     }
 
-    public Node getMyNode(){
-        return myNode;
+    public CompletableFuture<List<PeerInfo>> getPeers(ByteBuffer info_hash){
+        return getPeers(info_hash, false, DEFAULT_GETPEERS_DEPTH, DEFAULT_GETPEERS_MAXPEERS);
     }
 
-    public void getPeers(ByteBuffer info_hash, boolean announce){
-        getPeers(info_hash, announce, DEFAULT_GETPEERS_DEPTH, DEFAULT_GETPEERS_MAXPEERS);
+    /**
+     * Completes with the node's response, or exceptionally with the KRPCError it sent
+     * or a TimeoutException
+     */
+    public CompletableFuture<KRPCResponse.Ping> ping(Node node){
+        return sendQuery(node, pingQuery, null).thenApply(new Function<KRPCResponse, KRPCResponse.Ping>() {
+            @Override
+            public KRPCResponse.Ping apply(KRPCResponse response) {
+                return (KRPCResponse.Ping) response;
+            }
+        });
     }
 
-    public void getPeers(ByteBuffer info_hash, boolean announce, int depth, int maxPeers){
-        PeerQuery peerQuery = new PeerQuery(info_hash, maxPeers, announce, depth);
+    /**
+     * Completes with the nodes closest to target the node knows of. They are offered
+     * to the routing table as well, like with any find_node response.
+     */
+    public CompletableFuture<List<Node>> findNode(final Node node, ByteBuffer target){
+        KRPCQuery query = new KRPCQuery.FindNode(myNode.getNodeId(), target);
+        return sendQuery(node, query, 1).thenApply(new Function<KRPCResponse, List<Node>>() {
+            @Override
+            public List<Node> apply(KRPCResponse response) {
+                ByteBuffer nodes = ((KRPCResponse.FindNode) response).getNodes();
+                try {
+                    return decodeNodes(nodes, node.getIp().getAddress().length);
+                } catch (UnknownHostException e) {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
 
-        synchronized (peerQueries){
-            peerQueries.add(peerQuery);
+    private static List<Node> decodeNodes(ByteBuffer nodes, int ipLength) throws UnknownHostException {
+        List<Node> result = new ArrayList<>();
+        int compactElementSize = 20 + ipLength + 2;
+        if (nodes == null || nodes.remaining() % compactElementSize != 0)
+            return result;
+        nodes = nodes.duplicate();
+        while (nodes.hasRemaining())
+            result.add(new Node(nodes, ipLength, false));
+        return result;
+    }
+
+    private void announce(ByteBuffer info_hash, Map<Node, ByteBuffer> announceNodes){
+        for(Map.Entry<Node, ByteBuffer> entry : announceNodes.entrySet()){
+            sendAnnouncePeer(entry.getKey(), info_hash, peerPort, entry.getValue());
         }
+        // Even if none, so it tries again later
+        announceScheduler.announced(info_hash, announceNodes);
+    }
 
-        List<Node> nodes = nodeList.findClosest(info_hash, 8);
-        for (Node node : nodes)
-            sendGetPeers(node, depth, peerQuery);
+    /**
+     * Keeps info_hash announced until stopAnnouncing(): announced once the lookup for it ends,
+     * then re-announced every few minutes, reusing the tokens of the closest nodes while they last
+     */
+    public void startAnnouncing(ByteBuffer info_hash){
+        announceScheduler.add(ByteBuffer.wrap(Bencode.getBytes(info_hash)));
     }
 
-    private void announce(PeerQuery peerQuery){
-        Map<Node, Object> announceNodes = peerQuery.getAnnounceNodes();
-        if (announceNodes == null || announceNodes.size() == 0)
-            return;
+    public void stopAnnouncing(ByteBuffer info_hash){
+        announceScheduler.remove(info_hash);
+    }
+
+    public boolean isAnnouncing(ByteBuffer info_hash){
+        return announceScheduler.contains(info_hash);
+    }
 
-        for(Map.Entry<Node, Object> entry : announceNodes.entrySet()){
-            sendAnnouncePeer(entry.getKey(), peerQuery.getInfoHash(), peerPort, entry.getValue());
+    CompletableFuture<KRPCResponse> announcePeer(Node node, ByteBuffer info_hash, ByteBuffer token){
+        if (Logger.verbose)
+            Logger.log("Sent query announce_peer: Announced infohash " +
+                    Logger.toHex(Bencode.getBytes(info_hash)) + " to " + node.getIp().toString());
+        return sendQuery(node, new KRPCQuery.AnnouncePeer(myNode.getNodeId(), info_hash, peerPort, false, token), null);
+    }
+
+    private CompletableFuture<KRPCResponse> sendQuery(Node node, KRPCQuery query, Object opaque){
+        CompletableFuture<KRPCResponse> future;
+        if (stopped.get()) {
+            future = new CompletableFuture<>();
+            future.completeExceptionally(new IllegalStateException("DHT is stopped"));
+            return future;
         }
+        future = krpc.query(node, query, responseReceiver, opaque);
+        if (future.isCompletedExceptionally() && Logger.verbose)
+            Logger.log("Failed sending " + query.getMethod() + " to " + node.getIp().toString());
+        return future;
     }
 
-    private void sendQuery(Node node, String method, Map<ByteBuffer, Object> args, Object opaque){
+    /**
+     * Like sendQuery(), for when only the ResponseReceiver needs the response. Without a future
+     * the response is never copied out of the packet. False if it could not be sent.
+     */
+    private boolean send(Node node, KRPCQuery query, Object opaque){
         if (stopped.get())
-            return;
+            return false;
         try {
-            args.put(ByteBuffer.wrap("id".getBytes()), myNode.getNodeId());
-            krpc.sendQuery(node, method, args, responseReceiver, opaque );
+            krpc.sendQuery(node, query, responseReceiver, opaque);
+            return true;
         } catch (Exception e) {
-            e.printStackTrace();
+            if (Logger.verbose)
+                Logger.log("Failed sending " + query.getMethod() + " to " + node.getIp().toString());
+            return false;
         }
 
         //if (Logger.verbose)
@@ -342,82 +738,89 @@ public class DHT implements Runnable {
     }
 
     public void sendPing(Node node){
-        sendQuery(node, "ping", new HashMap<ByteBuffer, Object>(), null);
+        send(node, pingQuery, null);
 
         if (Logger.verbose)
             Logger.log("Sent query ping: " + node.getIp().toString());
     }
 
     private void sendFindNode(Node node, ByteBuffer target, int depth){
-        Map<ByteBuffer, Object> args = new HashMap<>();
-        args.put(ByteBuffer.wrap("target".getBytes()), target);
-        sendQuery(node, "find_node", args, depth);
+        send(node, new KRPCQuery.FindNode(myNode.getNodeId(), target), depth);
 
         if (Logger.verbose)
             Logger.log("Sent query find_node: Requested target " +
-                    Logger.toHex(target.array()) + " from " + node.getIp().toString());
+                    Logger.toHex(Bencode.getBytes(target)) + " from " + node.getIp().toString());
     }
 
-    private void sendGetPeers(Node node, int depth, PeerQuery peerQuery){
-
-        if (peerQuery.isAlreadyTried(node.getNodeId()))
+    private void sendAnnouncePeer(Node node, ByteBuffer info_hash, int port, ByteBuffer token){
+        if (token == null)
             return;
-
-        GetPeersOpaque opaque = new GetPeersOpaque();
-        opaque.depth = depth;
-        opaque.peerQuery = peerQuery;
-
-        Map<ByteBuffer, Object> args = new HashMap<>();
-        args.put(ByteBuffer.wrap("info_hash".getBytes()), peerQuery.getInfoHash());
-        sendQuery(node, "get_peers", args, opaque);
+        send(node, new KRPCQuery.AnnouncePeer(myNode.getNodeId(), info_hash, port, false, token), null);
 
         if (Logger.verbose)
-            Logger.log("Sent query get_peers: Requested infohash " +
-                    Logger.toHex(peerQuery.getInfoHash().array()) + " from " + node.getIp().toString());
+            Logger.log("Sent query announce_peer: Announced infohash " +
+                    Logger.toHex(Bencode.getBytes(info_hash)) + " to " + node.getIp().toString());
     }
 
-    private void sendAnnouncePeer(Node node, ByteBuffer info_hash, int port, Object token){
-        Map<ByteBuffer, Object> args = new HashMap<>();
-        args.put(ByteBuffer.wrap("info_hash".getBytes()), info_hash);
-        args.put(ByteBuffer.wrap("port".getBytes()), (long) port);
-        args.put(ByteBuffer.wrap("token".getBytes()), token);
-        sendQuery(node, "announce_peer", args, null);
+    public void explore(List<Node> nodes, ByteBuffer target, int depth){
+        if (nodes == null || nodes.isEmpty())
+            return;
+        execute(new Explorer(nodes, target, depth));
+    }
 
-        if (Logger.verbose)
-            Logger.log("Sent query announce_peer: Announced infohash " +
-                    Logger.toHex(info_hash.array()) + " to " + node.getIp().toString());
+    // The caller's executor, or the virtual threads while started with them. Null otherwise.
+    private Executor getExecutor(){
+        return executor != null ? executor : virtualThreads;
     }
 
-    public void explore(final List<Node> nodes, final ByteBuffer target, final int depth){
-        Runnable explorerRunnable = new Runnable() {
-            @Override
-            public void run() {
-                if (nodes.isEmpty())
-                    return;
+    /**
+     * Runs task on the executor if there is one, otherwise right here
+     */
+    private void execute(Runnable task){
+        Executor executor = getExecutor();
+        if (executor == null) {
+            task.run();
+            return;
+        }
+        try {
+            executor.execute(task);
+        } catch (RejectedExecutionException e) {
+            // Shutting down
+        }
+    }
 
-                for (Node node : nodes) {
-                    sendFindNode(node, target, depth);
-                    try {
-                        // Give the closer nodes a chance to answer first
-                        Thread.sleep(EXPLORER_NODE_INTERVAL);
-                    } catch (InterruptedException e) {
-                        //
-                    }
-                    if (stopped.get())
-                        return;
-                }
-            }
-        };
+    /**
+     * Sends find_node to one node at a time, giving the closer nodes a chance to answer first.
+     * Waits on the timer between nodes rather than holding a thread.
+     */
+    private class Explorer implements Runnable {
 
-        Thread explorer = new Thread(explorerRunnable);
-        explorer.setName("DHTExplorerThread");
-        explorer.start();
+        private final Iterator<Node> nodes;
+        private final ByteBuffer target;
+        private final int depth;
 
+        public Explorer(List<Node> nodes, ByteBuffer target, int depth){
+            this.nodes = new ArrayList<>(nodes).iterator();
+            this.target = target;
+            this.depth = depth;
+        }
+
+        @Override
+        public void run() {
+            if (stopped.get())
+                return;
+            sendFindNode(nodes.next(), target, depth);
+            if (nodes.hasNext())
+                timer.schedule(this, EXPLORER_NODE_INTERVAL);
+        }
     }
 
+    /**
+     * Looks target up, starting from the maxNodes closest nodes we know.
+     * depth is no longer used, the lookup runs until the closest nodes answered.
+     */
     public void explore(ByteBuffer target, int maxNodes, int depth){
-        List<Node> nodes = nodeList.findClosest(target, maxNodes);
-        explore(nodes, target, depth);
+        lookup(target, maxNodes);
     }
 
     public void addNodes(List<Node> nodes){
@@ -432,17 +835,16 @@ public class DHT implements Runnable {
     public List<Node> addNodes(ByteBuffer nodes, int ipLength, boolean returnAll) throws UnknownHostException {
         List<Node> addedNodes = new LinkedList<>();
         int compactElementSize = 20 + ipLength + 2;
-        if (nodes == null || nodes.array().length % compactElementSize != 0)
+        if (nodes == null || nodes.remaining() % compactElementSize != 0)
             return null;
-        int numNodes = nodes.array().length / compactElementSize;
+        int numNodes = nodes.remaining() / compactElementSize;
         for (int i=0; i<numNodes; i++) {
-            byte[] newNodeIDBA = new byte[20];
-            nodes.get(newNodeIDBA);
+            NodeId newNodeID = NodeId.read(nodes);
+            nodes.position(nodes.position() + NodeId.LENGTH);
             byte[] newNodeIPBA = new byte[ipLength];
             nodes.get(newNodeIPBA);
             byte[] newNodePortBA = new byte[2];
             nodes.get(newNodePortBA);
-            ByteBuffer newNodeID = ByteBuffer.wrap(newNodeIDBA);
             InetAddress newNodeIP = InetAddress.getByAddress(newNodeIPBA);
             int newNodePort = ((newNodePortBA[0] & 0xFF) << 8) | (newNodePortBA[1] & 0xFF);
             if (isInBlackList(newNodeID))
@@ -460,8 +862,8 @@ public class DHT implements Runnable {
         return addedNodes;
     }
 
-    private void heardFrom(ByteBuffer nodeID, InetAddress ip, int port, boolean isPermanent){
-        if (nodeID.equals(myNode.getNodeId()))
+    private void heardFrom(NodeId nodeID, InetAddress ip, int port, boolean isPermanent){
+        if (nodeID.equals(myNode.getId()))
             return;
 
         Node node = nodeList.putIfAbsent(nodeID, ip, port, isPermanent, false);
@@ -471,21 +873,35 @@ public class DHT implements Runnable {
         node.setQuestionable(false);
         removeFromBlackList(nodeID);
 
-        // If get_peers response was low, we try to enhence it
-        synchronized (peerQueries){
-            for (PeerQuery peerQuery : peerQueries){
-                if (peerQuery.shouldContinue() && peerQuery.getTriedNodesCount() < 8)
-                    sendGetPeers(node, peerQuery.getOriginalDepth(), peerQuery);
-            }
+        // Lookups short of candidates may want it, they query it only if it is among the closest
+        if (!hungryLookups.isEmpty()) {
+            for (Lookup lookup : hungryLookups)
+                lookup.offer(node);
+        }
+    }
+
+    /**
+     * Nodes from a response, less ourselves, as candidates for a lookup
+     */
+    private List<Node> lookupCandidates(ByteBuffer nodes, int ipLength) throws UnknownHostException {
+        List<Node> candidates = addNodes(nodes, ipLength, true);
+        if (candidates == null)
+            return null;
+        Iterator<Node> it = candidates.iterator();
+        while (it.hasNext()) {
+            if (myNode.getId().equals(it.next().getId()))
+                it.remove();
         }
+        return candidates;
     }
 
-    private ByteBuffer generateCompactNodes(List<Node> nodeList){
+    private ByteBuffer generateCompactNodes(Node[] nodeList, int count){
         ByteBuffer nodes;
-        if (nodeList != null && nodeList.size() > 0){
-            nodes = ByteBuffer.allocate(nodeList.get(0).getCompactInfo().length * nodeList.size());
-            for (Node node : nodeList)
-                nodes.put(node.getCompactInfo());
+        if (count > 0){
+            nodes = ByteBuffer.allocate(nodeList[0].getCompactInfo().length * count);
+            for (int i = 0; i < count; i++)
+                nodes.put(nodeList[i].getCompactInfo());
+            nodes.flip();
         } else {
             nodes = ByteBuffer.allocate(0);
         }
@@ -502,7 +918,7 @@ public class DHT implements Runnable {
         }
 
         @Override
-        public void onResponseReceived(KRPC.QueryData queryData, boolean error, Map response, List errorResponse) throws Exception {
+        public void onResponseReceived(KRPC.QueryData queryData, KRPCResponse response) throws Exception {
             DHT dht = dhtWeakReference.get();
             if (dht == null)
                 return;
@@ -510,20 +926,7 @@ public class DHT implements Runnable {
             if (dht.stopped.get())
                 return;
 
-            if (error){
-                if (Logger.verbose)
-                    Logger.log("Got error to query " + queryData.method + " from " +
-                            queryData.sentTo.getIp().toString() + ": " +
-                            errorResponse.get(0) + " - " +
-                            new String(((ByteBuffer)errorResponse.get(1)).array()));
-                return;
-            }
-
-            ByteBuffer nodeID = (ByteBuffer) response.get(ByteBuffer.wrap("id".getBytes()));
-            if (nodeID.array().length != 20)
-                return;
-
-            dht.heardFrom(nodeID, queryData.sentTo.getIp(), queryData.sentTo.getPort(),
+            dht.heardFrom(response.getSenderId(), queryData.sentTo.getIp(), queryData.sentTo.getPort(),
                     queryData.sentTo.isPermanent());
 
             int ipLength = queryData.sentTo.getIp().getAddress().length;
@@ -532,68 +935,91 @@ public class DHT implements Runnable {
                 Logger.log("Got response " + queryData.method + " from " +
                         queryData.sentTo.getIp().toString());
 
-            switch (queryData.method){
-                case "ping":
-                    break;
-
-                case "find_node":
-                    ByteBuffer nodes = (ByteBuffer) response.get(ByteBuffer.wrap("nodes".getBytes()));
-                    List<Node> addedNodes = dht.addNodes(nodes, ipLength, false);
-                    if (Logger.verbose && addedNodes != null)
-                        Logger.log("find_node: Got " + addedNodes.size() + " nodes from " +
-                                queryData.sentTo.getIp().toString());
-                    int depth = (Integer) queryData.opaque - 1;
-                    if (depth > 0 && addedNodes != null) {
-                        ByteBuffer target = (ByteBuffer) queryData.args.get(ByteBuffer.wrap("target".getBytes()));
-                        for (Node node : addedNodes) {
-                            dht.sendFindNode(node, target, depth);
-                        }
+            if (response instanceof KRPCResponse.FindNode) {
+                ByteBuffer nodes = ((KRPCResponse.FindNode) response).getNodes();
+                if (queryData.opaque instanceof LookupOpaque) {
+                    List<Node> candidates = null;
+                    try {
+                        candidates = dht.lookupCandidates(nodes, ipLength);
+                        if (Logger.verbose && candidates != null)
+                            Logger.log("find_node: Got " + candidates.size() + " nodes from " +
+                                    queryData.sentTo.getIp().toString());
+                    } finally {
+                        ((LookupOpaque) queryData.opaque).lookup.responded(queryData.sentTo, candidates);
                     }
+                    return;
+                }
 
-                    break;
+                // Explorer query
+                List<Node> addedNodes = dht.addNodes(nodes, ipLength, false);
+                if (Logger.verbose && addedNodes != null)
+                    Logger.log("find_node: Got " + addedNodes.size() + " nodes from " +
+                            queryData.sentTo.getIp().toString());
+                int depth = (Integer) queryData.opaque - 1;
+                if (depth > 0 && addedNodes != null) {
+                    ByteBuffer target = ((KRPCQuery.FindNode) queryData.query).getTarget();
+                    for (Node node : addedNodes) {
+                        dht.sendFindNode(node, target, depth);
+                    }
+                }
 
-                case "get_peers":
-                    GetPeersOpaque peersOpaque = (GetPeersOpaque) queryData.opaque;
-                    PeerQuery peerQuery = peersOpaque.peerQuery;
-                    Object token = response.get(ByteBuffer.wrap("token".getBytes()));
-                    peerQuery.addTriedNode(queryData.sentTo, token);
-                    List values = (List) response.get(ByteBuffer.wrap("values".getBytes()));
-                    ByteBuffer nodes1 = (ByteBuffer) response.get(ByteBuffer.wrap("nodes".getBytes()));
+            } else if (response instanceof KRPCResponse.GetPeers) {
+                KRPCResponse.GetPeers getPeers = (KRPCResponse.GetPeers) response;
+                LookupOpaque lookupOpaque = (LookupOpaque) queryData.opaque;
+                PeerQuery peerQuery = lookupOpaque.peerQuery;
+                List<Node> candidates = null;
+                try {
+                    peerQuery.addTriedNode(queryData.sentTo, getPeers.getToken());
+                    List<ByteBuffer> values = getPeers.getValues();
                     if (values != null) { // Got peers
                         List<PeerInfo> peerList = new ArrayList<>(values.size());
-                        for (Object peer : values)
-                            peerList.add(new PeerInfo((ByteBuffer) peer, ipLength));
+                        for (ByteBuffer peer : values)
+                            peerList.add(new PeerInfo(peer.duplicate(), ipLength));
                         peerList = peerQuery.addPeers(peerList);
                         if (dht.peersReceiver != null)
                             dht.peersReceiver.gotPeersFromDHT(peerQuery.getInfoHash(), peerList);
                         if (Logger.verbose)
                             Logger.log("get_peers: Got " + peerList.size() + " peers from " +
                                     queryData.sentTo.getIp().toString());
-
-                    } else if (nodes1 != null){ // Got nodes
-                        List<Node> addedNodes1 = dht.addNodes(nodes1, ipLength, true);
-                        if (Logger.verbose && addedNodes1 != null)
-                            Logger.log("get_peers: Got " + addedNodes1.size() + " nodes from " +
+                    }
+                    ByteBuffer nodes = getPeers.getNodes();
+                    if (nodes != null) { // Got nodes, some nodes send them along with peers
+                        candidates = dht.lookupCandidates(nodes, ipLength);
+                        if (Logger.verbose && candidates != null)
+                            Logger.log("get_peers: Got " + candidates.size() + " nodes from " +
                                     queryData.sentTo.getIp().toString());
-                        int depth1 = peersOpaque.depth -1;
-                        if (depth1 > 0 && addedNodes1 != null && peerQuery.shouldContinue()) {
-                            for (Node node : addedNodes1) {
-                                dht.sendGetPeers(node, depth1, peerQuery);
-                            }
-                        }
-
                     }
-                    break;
+                } finally {
+                    if (peerQuery.shouldContinue())
+                        lookupOpaque.lookup.responded(queryData.sentTo, candidates);
+                    else
+                        lookupOpaque.lookup.finish(); // Enough peers, or out of time
+                }
+            }
+        }
 
-                case "announce_peer":
-                    break;
+        @Override
+        public void onErrorReceived(KRPC.QueryData queryData, KRPCError error) {
+            DHT dht = dhtWeakReference.get();
+            if (dht == null)
+                return;
 
-                default:
-            }
+            if (dht.stopped.get())
+                return;
+
+            if (Logger.verbose)
+                Logger.log("Got error to query " + queryData.method + " from " +
+                        queryData.sentTo.getIp().toString() + ": " + error);
+
+            if (queryData.opaque instanceof LookupOpaque)
+                ((LookupOpaque) queryData.opaque).lookup.failed(queryData.sentTo);
         }
 
         @Override
         public void onTimeout(KRPC.QueryData queryData) {
+            if (queryData.opaque instanceof LookupOpaque)
+                ((LookupOpaque) queryData.opaque).lookup.failed(queryData.sentTo);
+
             DHT dht = dhtWeakReference.get();
             if (dht == null)
                 return;
@@ -603,13 +1029,17 @@ public class DHT implements Runnable {
 
             long now = System.currentTimeMillis();
 
-            if (queryData.sentTo.getLastSeen() >  now - KRPC.DEFAULT_QUERY_TIMEOUT)
+            // Heard from it since, it's alive
+            if (queryData.sentTo.getLastSeen() > queryData.sentTime)
                 return;
 
             if (Logger.verbose)
                 Logger.log("Query " + queryData.method + " to " +
                         queryData.sentTo.getIp().toString() + " timeouted.");
 
+            // Failed before too, a node standing by in its bucket takes its place if there is one
+            if (queryData.sentTo.isQuestionable() && dht.nodeList.replaceIfStandby(queryData.sentTo))
+                return;
 
             queryData.sentTo.setQuestionable(true);
 
@@ -621,7 +1051,7 @@ public class DHT implements Runnable {
 
             // Don't remove it just yet
             /*
-            ByteBuffer nodeID = queryData.sentTo.getNodeId();
+            NodeId nodeID = queryData.sentTo.getId();
 
 
             dht.nodeList.remove(nodeID);
@@ -642,7 +1072,7 @@ public class DHT implements Runnable {
         }
 
         @Override
-        public Map onQueryReceived(ByteBuffer mID, InetAddress ip, int port, String method, Map args) throws Exception{
+        public KRPCResponse onQueryReceived(ByteBuffer mID, InetAddress ip, int port, KRPCQuery query) throws Exception{
             DHT dht = dhtWeakReference.get();
             if (dht == null)
                 return null;
@@ -650,101 +1080,91 @@ public class DHT implements Runnable {
             if (dht.stopped.get())
                 return null;
 
-            ByteBuffer nodeID = (ByteBuffer) args.get(ByteBuffer.wrap("id".getBytes()));
-            if (nodeID.array().length != 20)
-                return null;
+            NodeId nodeID = query.getSenderId();
+            ByteBuffer myNodeID = dht.myNode.getNodeId();
 
             dht.heardFrom(nodeID, ip, port, false);
 
-            Map<ByteBuffer, Object> response = new HashMap<>();
-            response.put(ByteBuffer.wrap("id".getBytes()), dht.myNode.getNodeId());
-
             if (Logger.verbose)
-                Logger.log("Recieved query " + method + " from " + ip.toString());
+                Logger.log("Recieved query " + query.getMethod() + " from " + ip.toString());
 
 
-            switch (method){
-                case "ping":
-                    break;
+            if (query instanceof KRPCQuery.Ping) {
+                return new KRPCResponse.Ping(myNodeID);
 
-                case "find_node":
-                    ByteBuffer target = (ByteBuffer) args.get(ByteBuffer.wrap("target".getBytes()));
-                    List<Node> nodeList = dht.nodeList.findClosest(target, NUM_RETURN_NODES);
-                    ByteBuffer nodes = dht.generateCompactNodes(nodeList);
-                    response.put(ByteBuffer.wrap("nodes".getBytes()), nodes);
-                    if (Logger.verbose && nodeList != null)
-                        Logger.log("find_node: Sent " + nodeList.size() + " nodes to " +
-                                ip.toString());
+            } else if (query instanceof KRPCQuery.FindNode) {
+                ByteBuffer target = ((KRPCQuery.FindNode) query).getTarget();
+                Node[] nodeList = new Node[NUM_RETURN_NODES];
+                int count = dht.nodeList.findClosest(NodeId.read(target), nodeList);
+                ByteBuffer nodes = dht.generateCompactNodes(nodeList, count);
+                if (Logger.verbose)
+                    Logger.log("find_node: Sent " + count + " nodes to " +
+                            ip.toString());
 
+                return new KRPCResponse.FindNode(myNodeID, nodes);
 
-                    break;
+            } else if (query instanceof KRPCQuery.GetPeers) {
+                // Generate token
+                // Swept by the ticker once too old, see cleanTokens()
+                Token token = new Token(nodeID);
+                synchronized (dht.outgoingTokens){
+                    dht.outgoingTokens.put(token.getToken(), token);
+                }
+                // Get peers
+                ByteBuffer info_hash = ((KRPCQuery.GetPeers) query).getInfoHash();
+                List<PeerInfo> peers = dht.peerList.getPeers(info_hash);
 
-                case "get_peers":
-                    // Generate token
-                    Token token = new Token(nodeID);
-                    response.put(ByteBuffer.wrap("token".getBytes()), token.getToken());
-                    synchronized (dht.outgoingTokens){
-                        dht.outgoingTokens.put(token.getToken(), token);
-                    }
-                    // Get peers
-                    ByteBuffer info_hash = (ByteBuffer) args.get(ByteBuffer.wrap("info_hash".getBytes()));
-                    List<PeerInfo> peers = dht.peerList.getPeers(info_hash);
+                if (Logger.verbose)
+                    Logger.log("get_peers: node " + ip.toString() + " requested infohash " +
+                            Logger.toHex(Bencode.getBytes(info_hash)));
 
-                    if (Logger.verbose)
-                        Logger.log("get_peers: node " + ip.toString() + " requested infohash " +
-                                Logger.toHex(info_hash.array()));
 
+                if (peers != null && peers.size()>0){
+                    // Send peers
+                    List<ByteBuffer> values = new ArrayList<>(peers.size());
+                    for (PeerInfo peer : peers)
+                        values.add(ByteBuffer.wrap(peer.getCompactInfo()));
 
-                    if (peers != null && peers.size()>0){
-                        // Send peers
-                        List<ByteBuffer> values = new ArrayList<>(peers.size());
-                        for (PeerInfo peer : peers)
-                            values.add(ByteBuffer.wrap(peer.getCompactInfo()));
-                        response.put(ByteBuffer.wrap("values".getBytes()), values);
+                    if (Logger.verbose)
+                        Logger.log("get_peers: Sent " + values.size() + " peers to " +
+                                ip.toString());
 
-                        if (Logger.verbose)
-                            Logger.log("get_peers: Sent " + values.size() + " peers to " +
-                                    ip.toString());
-                    } else {
-                        // Send nodes
-                        List<Node> nodeList1 = dht.nodeList.findClosest(info_hash, NUM_RETURN_NODES);
-                        ByteBuffer nodes1 = dht.generateCompactNodes(nodeList1);
-                        response.put(ByteBuffer.wrap("nodes".getBytes()), nodes1);
-                        if (Logger.verbose && nodeList1 != null)
-                            Logger.log("get_peers: Sent " + nodeList1.size() + " nodes to " +
-                                    ip.toString());
+                    return new KRPCResponse.GetPeers(myNodeID, token.getToken(), null, values);
+                } else {
+                    // Send nodes
+                    Node[] nodeList1 = new Node[NUM_RETURN_NODES];
+                    int count1 = dht.nodeList.findClosest(NodeId.read(info_hash), nodeList1);
+                    ByteBuffer nodes1 = dht.generateCompactNodes(nodeList1, count1);
+                    if (Logger.verbose)
+                        Logger.log("get_peers: Sent " + count1 + " nodes to " +
+                                ip.toString());
 
-                    }
-                    break;
-
-                case "announce_peer":
-                    // Verify token
-                    ByteBuffer token1 = (ByteBuffer) args.get(ByteBuffer.wrap("token".getBytes()));
-                    synchronized (dht.outgoingTokens){
-                        Token outToken = dht.outgoingTokens.get(token1);
-                        if (outToken == null || !outToken.getNodeID().equals(nodeID))
-                            return null;
-                    }
+                    return new KRPCResponse.GetPeers(myNodeID, token.getToken(), nodes1, null);
+                }
 
-                    ByteBuffer info_hash1 = (ByteBuffer) args.get(ByteBuffer.wrap("info_hash".getBytes()));
-                    Long port1 = (Long) args.get(ByteBuffer.wrap("port".getBytes()));
-                    Long implied_port = (Long) args.get(ByteBuffer.wrap("implied_port".getBytes()));
-                    if (implied_port != null && implied_port != 0)
-                        port1 = (long) port;
+            } else if (query instanceof KRPCQuery.AnnouncePeer) {
+                KRPCQuery.AnnouncePeer announce = (KRPCQuery.AnnouncePeer) query;
+                // Verify token
+                synchronized (dht.outgoingTokens){
+                    Token outToken = dht.outgoingTokens.get(announce.getToken());
+                    // Expired ones may still wait for the sweep
+                    if (outToken == null || !outToken.getNodeID().equals(nodeID) ||
+                            outToken.getGeneratedTime() < System.currentTimeMillis() - TOKEN_TIMEOUT)
+                        throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Bad Token");
+                }
 
-                    dht.peerList.announce(info_hash1, new PeerInfo(ip, port1.intValue()));
-                    if (Logger.verbose)
-                        Logger.log("announce peer: " + ip.toString() + " with infohash " +
-                                Logger.toHex(info_hash1.array()));
+                ByteBuffer info_hash1 = announce.getInfoHash();
+                int port1 = announce.isImpliedPort() ? port : announce.getPort();
 
-                    break;
+                dht.peerList.announce(info_hash1, new PeerInfo(ip, port1));
+                if (Logger.verbose)
+                    Logger.log("announce peer: " + ip.toString() + " with infohash " +
+                            Logger.toHex(Bencode.getBytes(info_hash1)));
 
-                default:
-                    return null;
+                return new KRPCResponse.AnnouncePeer(myNodeID);
             }
 
-
-            return response;
+            return null;
         }
     }
 }
@@ -6,55 +6,260 @@ package org.jdht.dht;
 
 
 import org.jdht.bencode.Bencode;
+import org.jdht.bencode.BencodeDictionary;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
+import java.nio.BufferOverflowException;
 import java.nio.ByteBuffer;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
-
-public class KRPC implements Runnable {
-
-    public static final long DEFAULT_QUERY_TIMEOUT = 60*1000; // 60 sec
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+public class KRPC implements Runnable, Executor {
+
+    private static final int MIN_SEND_BUFFER_SIZE = 1500;
+    private static final int MAX_SEND_BUFFER_SIZE = 64*1024;
+    private static final int MAX_PACKET_SIZE = 64*1024;
+    private static final int CHANNEL_BUFFER_SIZE = 8*1024; // Larger than any sane KRPC message
+    private static final int RECEIVE_QUEUE_SIZE = 1024;
+    private static final int MAX_POOLED_BUFFERS = RECEIVE_QUEUE_SIZE + 64; // Queued plus being handled
+    public static final int DEFAULT_HANDLER_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+    private static final int MAX_SEND_QUEUE = 4096;
+    private static final int TRANSACTION_ID_LENGTH = 4;
+
+    public static enum TransportMode {
+        /** Blocking java.net.DatagramSocket, packets go through heap arrays */
+        DATAGRAM_SOCKET,
+        /** Non-blocking DatagramChannel with pooled direct buffers */
+        DATAGRAM_CHANNEL
+    }
 
     public static interface OnResponseReceived {
-        public void onResponseReceived(QueryData queryData, boolean error, Map response, List errorResponse) throws Exception;
+        public void onResponseReceived(QueryData queryData, KRPCResponse response) throws Exception;
+        public void onErrorReceived(QueryData queryData, KRPCError error) throws Exception;
         public void onTimeout(QueryData queryData);
     }
 
     public static interface OnQueryReceived {
-        public Map onQueryReceived(ByteBuffer mID, InetAddress ip, int port, String method, Map args) throws Exception;
+        /**
+         * Returns the response to send, or null to answer with a generic error.
+         * Throw KRPCError to answer with a specific error.
+         */
+        public KRPCResponse onQueryReceived(ByteBuffer mID, InetAddress ip, int port, KRPCQuery query) throws Exception;
     }
 
     public static class QueryData {
+        public int transactionId;
         public ByteBuffer mID;
         public Node sentTo;
         public String method;
-        public Map args;
+        public KRPCQuery query;
         public OnResponseReceived onResponse;
         public long sentTime;
+        public long sentNanos; // For round trips, System.nanoTime() does not jump with the clock
         public Object opaque;
+        public TimingWheel.Timeout timeout;
+        public CompletableFuture<KRPCResponse> future;
+    }
+
+    private static class PendingSend {
+        public ByteBuffer buffer;
+        public InetSocketAddress address;
+    }
+
+    // A packet on its way from the receiver to a handler
+    private static class Received {
+        public ByteBuffer packet;
+        public BufferPool pool; // Where the packet goes back to, null if not pooled
+        public BencodeDictionary message;
+        public InetSocketAddress from;
+        public long receivedNanos;
     }
 
     private OnQueryReceived onQueryReceived = null;
     private int port;
+    private TransportMode transportMode;
     private DatagramSocket socket;
+    private DatagramChannel channel;
+    private Selector selector;
+    private SelectionKey selectionKey;
+    private BufferPool bufferPool;
+    private final ConcurrentLinkedQueue<PendingSend> sendQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger sendQueueSize = new AtomicInteger();
     private Thread thread = null;
-    private final List<QueryData> queryList = new LinkedList<>();
+    private int handlerThreads = DEFAULT_HANDLER_THREADS;
+    private Handler[] handlers = null;
+    private final BoundedQueue<Received> receiveQueue = new BoundedQueue<>(RECEIVE_QUEUE_SIZE);
+    private final ConcurrentLinkedQueue<Handler> idleHandlers = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // For the handler threads
+    private final AtomicLong droppedPackets = new AtomicLong();
+    private final LatencyTracker latency = new LatencyTracker();
+    private Executor executor = null;
+    private final AtomicInteger activeDrainers = new AtomicInteger();
+    private final Drainer drainer = new Drainer();
+    private final TimingWheel timer;
+    private final boolean ownsTimer;
+    // Queries waiting for a response, by transaction id
+    private final ConcurrentHashMap<Integer, QueryData> pendingQueries = new ConcurrentHashMap<>();
+    // Unpredictable, so that only the node asked can answer
+    private final SecureRandom transactionIds = new SecureRandom();
+    // Pre-encoded ping, find_node and get_peers queries, by method
+    private final ConcurrentHashMap<String, KRPCTemplate> templates = new ConcurrentHashMap<>();
+
+    // Every sending thread encodes into its own buffer, grown on demand
+    private final ThreadLocal<ByteBuffer> sendBuffer = new ThreadLocal<ByteBuffer>() {
+        @Override
+        protected ByteBuffer initialValue() {
+            return ByteBuffer.allocate(MIN_SEND_BUFFER_SIZE);
+        }
+    };
 
-    public KRPC(int port, OnQueryReceived onQueryReceived){
+    /**
+     * Query timeouts are scheduled on timer, which the caller starts and stops
+     */
+    public KRPC(int port, OnQueryReceived onQueryReceived, TransportMode transportMode, TimingWheel timer){
         this.port = port;
         this.onQueryReceived = onQueryReceived;
+        this.transportMode = transportMode;
+        this.ownsTimer = timer == null;
+        this.timer = timer == null ? new TimingWheel() : timer;
+        if (ownsTimer)
+            this.timer.setExecutor(this);
+    }
+
+    public KRPC(int port, OnQueryReceived onQueryReceived, TransportMode transportMode){
+        this(port, onQueryReceived, transportMode, null);
+    }
+
+    public KRPC(int port, OnQueryReceived onQueryReceived){
+        this(port, onQueryReceived, TransportMode.DATAGRAM_CHANNEL);
+    }
+
+    /**
+     * Takes effect on the next start
+     */
+    public void setTransportMode(TransportMode transportMode){
+        this.transportMode = transportMode;
+    }
+
+    public TransportMode getTransportMode(){
+        return transportMode;
+    }
+
+    /**
+     * Number of threads running the query and response handlers, takes effect on the next start
+     */
+    public void setHandlerThreads(int handlerThreads){
+        if (handlerThreads <= 0)
+            throw new IllegalArgumentException("Bad number of handler threads " + handlerThreads);
+        this.handlerThreads = handlerThreads;
+    }
+
+    public int getHandlerThreads(){
+        return handlerThreads;
+    }
+
+    /**
+     * Runs the handlers on executor instead of on threads of our own, at most
+     * getHandlerThreads() of them at a time. Null goes back to own threads.
+     * Takes effect on the next start.
+     */
+    public void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    public Executor getExecutor(){
+        return executor;
+    }
+
+    /**
+     * Runs task where the handlers run, on the executor or on one of our handler threads.
+     * The timer hands its expired tasks here, so they never hold up its thread.
+     */
+    @Override
+    public void execute(Runnable task){
+        Executor executor = this.executor;
+        if (executor != null) {
+            try {
+                executor.execute(task);
+            } catch (RejectedExecutionException e) {
+                // Shutting down
+            }
+            return;
+        }
+        tasks.add(task);
+        Handler idle = idleHandlers.poll();
+        if (idle != null) {
+            idle.idle.set(false);
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    /**
+     * Packets dropped because the handlers could not keep up
+     */
+    public long getDroppedPackets(){
+        return droppedPackets.get();
+    }
+
+    /**
+     * Round trips of all answered queries
+     */
+    public LatencyTracker getLatencyTracker(){
+        return latency;
     }
 
     public void start() throws SocketException {
-        socket = new DatagramSocket(this.port);
+        if (transportMode == TransportMode.DATAGRAM_CHANNEL) {
+            try {
+                bufferPool = new BufferPool(CHANNEL_BUFFER_SIZE, MAX_POOLED_BUFFERS);
+                selector = Selector.open();
+                channel = DatagramChannel.open();
+                channel.bind(new InetSocketAddress(this.port));
+                channel.configureBlocking(false);
+                selectionKey = channel.register(selector, SelectionKey.OP_READ);
+            } catch (SocketException e) {
+                closeChannel();
+                throw e;
+            } catch (IOException e) {
+                closeChannel();
+                SocketException se = new SocketException(e.getMessage());
+                se.initCause(e);
+                throw se;
+            }
+        } else {
+            socket = new DatagramSocket(this.port);
+        }
+        if (ownsTimer)
+            timer.start();
+        tasks.clear();
+        handlers = new Handler[executor == null ? handlerThreads : 0];
+        for (int i = 0; i < handlers.length; i++) {
+            handlers[i] = new Handler();
+            handlers[i].thread = new Thread(handlers[i]);
+            handlers[i].thread.setName("DHT_KRPCHandler-" + i);
+            handlers[i].thread.start();
+        }
         thread = new Thread(this);
         thread.setName("DHT_KRPCReceiver");
         thread.start();
@@ -62,149 +267,482 @@ public class KRPC implements Runnable {
 
     public void stop(){
         thread.interrupt();
-        socket.close();
+        if (socket != null)
+            socket.close();
+        socket = null;
+        closeChannel();
         thread = null;
+        for (Handler handler : handlers)
+            handler.thread.interrupt();
+        handlers = null;
+        idleHandlers.clear();
+        tasks.clear();
+        Received received;
+        while ((received = receiveQueue.poll()) != null)
+            release(received);
+        if (ownsTimer)
+            timer.stop();
+        pendingQueries.clear();
     }
 
-    private QueryData removeQuery(ByteBuffer mID, InetAddress ip, int port){
-        synchronized (queryList){
-            for (int i=0; i<queryList.size(); i++){
-                QueryData queryData = queryList.get(i);
-                if (queryData.mID.equals(mID) && queryData.sentTo.getIp().equals(ip) &&
-                        queryData.sentTo.getPort() == port){
-                    queryList.remove(i);
-                    return queryData;
-                }
-            }
+    private void closeChannel(){
+        try {
+            if (selector != null)
+                selector.close();
+            if (channel != null)
+                channel.close();
+        } catch (IOException e) {
+            e.printStackTrace();
         }
-        return null;
+        selector = null;
+        channel = null;
+        sendQueue.clear();
+        sendQueueSize.set(0);
     }
 
-    public void tick(){
-        long now = System.currentTimeMillis();
-        List<QueryData> timeoutQueries = new LinkedList<>();
-
-        synchronized (queryList) {
-            for (QueryData item : queryList){
-                if (now > item.sentTime + DEFAULT_QUERY_TIMEOUT)
-                    timeoutQueries.add(item);
-            }
+    private QueryData removeQuery(ByteBuffer mID, InetAddress ip, int port){
+        // We only hand out 4 byte transaction ids, anything else is not ours
+        if (mID.remaining() != TRANSACTION_ID_LENGTH)
+            return null;
+        Integer transactionId = mID.getInt(mID.position());
+        QueryData queryData = pendingQueries.get(transactionId);
+        if (queryData == null || !queryData.sentTo.getIp().equals(ip) || queryData.sentTo.getPort() != port)
+            return null;
+        // Whoever removes it owns it, a racing timeout or duplicate response gets nothing
+        if (!pendingQueries.remove(transactionId, queryData))
+            return null;
+        // Null if the answer beat arming the timeout, which then finds nothing to time out
+        TimingWheel.Timeout timeout = queryData.timeout;
+        if (timeout != null)
+            timeout.cancel();
+        return queryData;
+    }
 
-            queryList.removeAll(timeoutQueries);
-        }
+    public void sendQuery(Node node, KRPCQuery query, OnResponseReceived onResponse, Object opaque) throws Exception {
+        sendQuery(newQueryData(node, query, onResponse, opaque));
+    }
 
-        for (QueryData item : timeoutQueries){
-            if (item.onResponse != null)
-                item.onResponse.onTimeout(item);
+    /**
+     * Sends query and returns a future completing with the response, after onResponse (which may be null)
+     * was called. It completes exceptionally with the KRPCError received, or with a TimeoutException.
+     * Unlike the response given to onResponse, the one the future completes with may be kept.
+     */
+    public CompletableFuture<KRPCResponse> query(Node node, KRPCQuery query, OnResponseReceived onResponse, Object opaque) {
+        QueryData queryData = newQueryData(node, query, onResponse, opaque);
+        CompletableFuture<KRPCResponse> future = new CompletableFuture<>();
+        queryData.future = future;
+        try {
+            sendQuery(queryData);
+        } catch (Exception e) {
+            future.completeExceptionally(e);
         }
+        return future;
+    }
 
+    public CompletableFuture<KRPCResponse> query(Node node, KRPCQuery query) {
+        return query(node, query, null, null);
     }
 
-    public void sendQuery(Node node, String method, Map args, OnResponseReceived onResponse, Object opaque) throws Exception {
+    private QueryData newQueryData(Node node, KRPCQuery query, OnResponseReceived onResponse, Object opaque){
         QueryData queryData = new QueryData();
 
-        queryData.mID = node.getMID();
         queryData.sentTo = node;
-        queryData.method = method;
-        queryData.args = args;
+        queryData.method = query.getMethod();
+        queryData.query = query;
         queryData.onResponse = onResponse;
         queryData.sentTime = System.currentTimeMillis();
+        queryData.sentNanos = System.nanoTime();
         queryData.opaque = opaque;
+        return queryData;
+    }
 
-        synchronized (queryList) {
-            queryList.add(queryData);
+    private void sendQuery(QueryData queryData) throws Exception {
+        // A random id, drawn again in the rare case it is taken
+        do {
+            queryData.transactionId = transactionIds.nextInt();
+        } while (pendingQueries.putIfAbsent(queryData.transactionId, queryData) != null);
+        queryData.mID = ByteBuffer.allocate(TRANSACTION_ID_LENGTH).putInt(0, queryData.transactionId);
+        queryData.timeout = timer.schedule(new QueryTimeout(queryData), queryData.sentTo.getQueryTimeout());
+
+        try {
+            send(queryData.mID, queryData.query, queryData.sentTo.getSocketAddress());
+        } catch (Exception e) {
+            if (pendingQueries.remove(queryData.transactionId, queryData))
+                queryData.timeout.cancel();
+            throw e;
         }
+    }
 
-        Map<ByteBuffer, Object> map = new HashMap<>();
-        map.put(ByteBuffer.wrap("t".getBytes()), queryData.mID);
-        map.put(ByteBuffer.wrap("y".getBytes()), ByteBuffer.wrap("q".getBytes()));
-        map.put(ByteBuffer.wrap("q".getBytes()), ByteBuffer.wrap(method.getBytes()));
-        map.put(ByteBuffer.wrap("a".getBytes()), args);
+    private class QueryTimeout implements Runnable {
 
-        Bencode bencode = new Bencode();
-        bencode.setRootElement(map);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(Bencode.getBencodeSize(map));
-        bencode.print(baos);
-        DatagramPacket p = new DatagramPacket(baos.toByteArray(), baos.size(), node.getIp(), node.getPort());
-        socket.send(p);
+        private final QueryData queryData;
+
+        public QueryTimeout(QueryData queryData){
+            this.queryData = queryData;
+        }
+
+        @Override
+        public void run() {
+            if (!pendingQueries.remove(queryData.transactionId, queryData))
+                return;
+            queryData.sentTo.backOff();
+            try {
+                if (queryData.onResponse != null)
+                    queryData.onResponse.onTimeout(queryData);
+            } finally {
+                if (queryData.future != null)
+                    queryData.future.completeExceptionally(new TimeoutException("No response to " + queryData.method +
+                            " from " + queryData.sentTo.getSocketAddress()));
+            }
+        }
     }
 
-    private void receiveQuery(ByteBuffer mID, InetAddress ip, int port, String method, Map args) throws Exception{
+    private void receiveQuery(ByteBuffer mID, InetSocketAddress from, BencodeDictionary message) throws Exception{
 
-        Map<ByteBuffer, Object> map = new HashMap<>();
-        Map response = null;
+        Object response = null;
 
-        map.put(ByteBuffer.wrap("t".getBytes()), mID);
+        try {
+            KRPCQuery query = KRPCCodec.decodeQuery(message);
+            if (onQueryReceived != null)
+                response = onQueryReceived.onQueryReceived(mID, from.getAddress(), from.getPort(), query);
+        } catch (KRPCError error) {
+            response = error;
+        }
 
-        if (onQueryReceived != null)
-            response = onQueryReceived.onQueryReceived(mID, ip, port, method, args);
+        if (response == null)
+            response = new KRPCError(KRPCError.GENERIC_ERROR, "A Generic Error Ocurred");
 
-        if (response != null){
-            map.put(ByteBuffer.wrap("y".getBytes()), ByteBuffer.wrap("r".getBytes()));
-            map.put(ByteBuffer.wrap("r".getBytes()), response);
-        } else {
-            List<Object> error = new LinkedList<>();
-            error.add(201L);
-            error.add(ByteBuffer.wrap("A Generic Error Ocurred".getBytes()));
-            map.put(ByteBuffer.wrap("y".getBytes()), ByteBuffer.wrap("e".getBytes()));
-            map.put(ByteBuffer.wrap("e".getBytes()), error);
-        }
-
-        Bencode bencode = new Bencode();
-        bencode.setRootElement(map);
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(Bencode.getBencodeSize(map));
-        bencode.print(baos);
-        DatagramPacket p = new DatagramPacket(baos.toByteArray(), baos.size(), ip, port);
+        send(mID, response, from);
+    }
+
+    private void send(ByteBuffer mID, Object message, InetSocketAddress address) throws IOException {
+        if (transportMode == TransportMode.DATAGRAM_CHANNEL) {
+            sendToChannel(mID, message, address);
+            return;
+        }
+
+        ByteBuffer buffer = sendBuffer.get();
+        while (true) {
+            buffer.clear();
+            try {
+                encode(mID, message, buffer);
+                break;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= MAX_SEND_BUFFER_SIZE)
+                    throw e;
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                sendBuffer.set(buffer);
+            }
+        }
+        DatagramPacket p = new DatagramPacket(buffer.array(), buffer.position(), address);
         socket.send(p);
     }
 
+    private void sendToChannel(ByteBuffer mID, Object message, InetSocketAddress address) throws IOException {
+        ByteBuffer buffer = bufferPool.acquire();
+        try {
+            encode(mID, message, buffer);
+        } catch (BufferOverflowException e) {
+            // Rare, such a buffer is not pooled
+            bufferPool.release(buffer);
+            buffer = ByteBuffer.allocateDirect(MAX_SEND_BUFFER_SIZE);
+            encode(mID, message, buffer);
+        }
+        buffer.flip();
+
+        // Keep the order, once something is queued everything is queued
+        if (sendQueue.isEmpty() && channel.send(buffer, address) > 0) {
+            bufferPool.release(buffer);
+            return;
+        }
+
+        if (sendQueueSize.incrementAndGet() > MAX_SEND_QUEUE) {
+            // Socket is far behind, drop it like the network would
+            sendQueueSize.decrementAndGet();
+            bufferPool.release(buffer);
+            return;
+        }
+        PendingSend pending = new PendingSend();
+        pending.buffer = buffer;
+        pending.address = address;
+        sendQueue.add(pending);
+        selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        selector.wakeup();
+    }
+
+    private void flushSendQueue() throws IOException {
+        PendingSend pending;
+        while ((pending = sendQueue.peek()) != null) {
+            if (channel.send(pending.buffer, pending.address) == 0)
+                return; // Still full, wait for the next OP_WRITE
+            sendQueue.poll();
+            sendQueueSize.decrementAndGet();
+            bufferPool.release(pending.buffer);
+        }
+        selectionKey.interestOps(SelectionKey.OP_READ);
+        // A sender may have queued after the loop found the queue empty
+        if (!sendQueue.isEmpty())
+            selectionKey.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+    }
+
+    private void encode(ByteBuffer mID, Object message, ByteBuffer buffer) {
+        if (message instanceof KRPCQuery)
+            encodeQuery(mID, (KRPCQuery) message, buffer);
+        else if (message instanceof KRPCResponse)
+            KRPCCodec.encodeResponse(mID, (KRPCResponse) message, buffer);
+        else
+            KRPCCodec.encodeError(mID, (KRPCError) message, buffer);
+    }
+
+    private void encodeQuery(ByteBuffer mID, KRPCQuery query, ByteBuffer buffer) {
+        if (!KRPCTemplate.isSupported(query)) {
+            KRPCCodec.encodeQuery(mID, query, buffer);
+            return;
+        }
+        KRPCTemplate template = templates.get(query.getMethod());
+        if (template == null || !template.matches(mID, query)) {
+            // First of its shape, or our id changed
+            template = new KRPCTemplate(mID, query);
+            templates.put(query.getMethod(), template);
+        }
+        template.write(mID, query, buffer);
+    }
+
 
     @Override
     public void run() {
-        byte[] buf = new byte[64*1024];
+        if (transportMode == TransportMode.DATAGRAM_CHANNEL)
+            runChannel();
+        else
+            runSocket();
+    }
+
+    private void runSocket() {
+        byte[] buf = new byte[MAX_PACKET_SIZE];
+        DatagramPacket p = new DatagramPacket(buf, buf.length);
         while(!Thread.currentThread().isInterrupted()) {
 
             try {
-                DatagramPacket p = new DatagramPacket(buf, buf.length);
+                p.setLength(buf.length);
                 socket.receive(p);
-                ByteArrayInputStream bais = new ByteArrayInputStream(buf);
-                Bencode bencode = new Bencode(bais);
-                bais.close();
-                Map map = (Map) bencode.getRootElement();
-                ByteBuffer mID = (ByteBuffer) map.get(ByteBuffer.wrap("t".getBytes()));
-                String type = new String(((ByteBuffer) map.get(ByteBuffer.wrap("y".getBytes()))).array());
-
-                if (type.equals("q")){
-
-                    String method = new String(((ByteBuffer) map.get(ByteBuffer.wrap("q".getBytes()))).array());
-                    Map args = (Map) map.get(ByteBuffer.wrap("a".getBytes()));
-                    receiveQuery(mID, p.getAddress(), p.getPort(), method, args);
-
-                } else if (type.equals("r") || type.equals("e")) {
-
-                    QueryData queryData = removeQuery(mID, p.getAddress(), p.getPort());
-
-                    if (queryData != null){
-                        if (type.equals("r")) {
-                            Map response = (Map) map.get(ByteBuffer.wrap("r".getBytes()));
-                            if (queryData.onResponse != null)
-                                queryData.onResponse.onResponseReceived(queryData, false, response, null);
-                        } else {
-                            List response = (List) map.get(ByteBuffer.wrap("e".getBytes()));
-                            if (queryData.onResponse != null)
-                                queryData.onResponse.onResponseReceived(queryData, true, null, response);
-                        }
-                    }
-
-                }
+                // Decoded byte strings are views into the packet, so it needs its own bytes
+                byte[] packet = Arrays.copyOf(buf, p.getLength());
+                enqueue(ByteBuffer.wrap(packet), null, (InetSocketAddress) p.getSocketAddress());
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
 
+        }
+    }
 
+    private void runChannel() {
+        Selector selector = this.selector;
+        while(!Thread.currentThread().isInterrupted()) {
 
+            try {
+                selector.select();
+                selector.selectedKeys().clear();
+                if (selectionKey.isReadable())
+                    receiveFromChannel();
+                if (selectionKey.isValid() && selectionKey.isWritable())
+                    flushSendQueue();
+            } catch (ClosedSelectorException | ClosedChannelException e) {
+                break;
             } catch (Exception e) {
                 e.printStackTrace();
             }
 
         }
     }
-}
 
+    private void receiveFromChannel() throws IOException {
+        while (true) {
+            ByteBuffer buffer = bufferPool.acquire();
+            InetSocketAddress from = (InetSocketAddress) channel.receive(buffer);
+            if (from == null) {
+                bufferPool.release(buffer);
+                return;
+            }
+            buffer.flip();
+            // The handler gives the buffer back once done with it
+            enqueue(buffer, bufferPool, from);
+        }
+    }
+
+    private void enqueue(ByteBuffer packet, BufferPool pool, InetSocketAddress from) {
+        Received received = new Received();
+        received.packet = packet;
+        received.pool = pool;
+        received.from = from;
+        received.receivedNanos = System.nanoTime();
+
+        try {
+            // Only indexed here, handlers decode what they need
+            received.message = new BencodeDictionary(packet);
+        } catch (IOException e) {
+            release(received);
+            return;
+        }
+
+        if (!receiveQueue.offer(received)) {
+            // Handlers are behind, drop it like a full socket buffer would
+            droppedPackets.incrementAndGet();
+            release(received);
+            if (Logger.verbose)
+                Logger.log("Receive queue full, packet from " + from + " dropped.");
+            return;
+        }
+
+        if (executor != null) {
+            if (acquireDrainer())
+                startDrainer();
+            return;
+        }
+
+        Handler idle = idleHandlers.poll();
+        if (idle != null) {
+            idle.idle.set(false);
+            LockSupport.unpark(idle.thread);
+        }
+    }
+
+    private static void release(Received received){
+        if (received.pool != null)
+            received.pool.release(received.packet);
+    }
+
+    private class Handler implements Runnable {
+
+        public Thread thread;
+        public final AtomicBoolean idle = new AtomicBoolean(false);
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Runnable task = tasks.poll();
+                if (task != null)
+                    runTask(task);
+                Received received = receiveQueue.poll();
+                if (received == null) {
+                    if (task != null)
+                        continue;
+                    // Announce we're idle before the last look, so an enqueue can't slip by unnoticed
+                    if (idle.compareAndSet(false, true))
+                        idleHandlers.add(this);
+                    if (receiveQueue.isEmpty() && tasks.isEmpty())
+                        LockSupport.park(this);
+                    continue;
+                }
+
+                handle(received);
+            }
+        }
+    }
+
+    // Drains the queue on the executor, up to handlerThreads of these run at once
+    private class Drainer implements Runnable {
+
+        @Override
+        public void run() {
+            while (true) {
+                Received received;
+                while ((received = receiveQueue.poll()) != null)
+                    handle(received);
+                activeDrainers.decrementAndGet();
+                // An enqueue may have counted on us and not started another one
+                if (receiveQueue.isEmpty() || !acquireDrainer())
+                    return;
+            }
+        }
+    }
+
+    private boolean acquireDrainer(){
+        while (true) {
+            int active = activeDrainers.get();
+            if (active >= handlerThreads)
+                return false;
+            if (activeDrainers.compareAndSet(active, active + 1))
+                return true;
+        }
+    }
+
+    private void startDrainer(){
+        try {
+            executor.execute(drainer);
+        } catch (RejectedExecutionException e) {
+            activeDrainers.decrementAndGet();
+        }
+    }
+
+    private static void runTask(Runnable task){
+        try {
+            task.run();
+        } catch (Throwable t) {
+            t.printStackTrace();
+        }
+    }
+
+    private void handle(Received received){
+        try {
+            dispatch(received.packet, received.message, received.from, received.receivedNanos);
+        } catch (Exception e) {
+            e.printStackTrace();
+        } finally {
+            // Handlers copy whatever they keep, so the buffer can be reused right away
+            release(received);
+        }
+    }
+
+    private void dispatch(ByteBuffer packet, BencodeDictionary message, InetSocketAddress from, long receivedNanos) throws Exception {
+        ByteBuffer mID = message.getByteString("t");
+        if (mID == null)
+            return;
+
+        if (message.matches("y", "q")){
+
+            receiveQuery(mID, from, message);
+
+        } else if (message.matches("y", "r") || message.matches("y", "e")) {
+
+            QueryData queryData = removeQuery(mID, from.getAddress(), from.getPort());
+            if (queryData == null)
+                return;
+            // Errors are answers too, they time the round trip just as well
+            long rtt = TimeUnit.NANOSECONDS.toMillis(receivedNanos - queryData.sentNanos);
+            queryData.sentTo.addRttSample(rtt);
+            latency.addSample(rtt);
+
+            if (message.matches("y", "r")) {
+                KRPCResponse response;
+                try {
+                    response = KRPCCodec.decodeResponse(queryData.method, message);
+                } catch (KRPCError error) {
+                    receiveError(queryData, error);
+                    return;
+                }
+                try {
+                    if (queryData.onResponse != null)
+                        queryData.onResponse.onResponseReceived(queryData, response);
+                } finally {
+                    // The response is made of views into the packet, the future gets one of its own
+                    if (queryData.future != null)
+                        queryData.future.complete(KRPCCodec.decodeResponse(queryData.method,
+                                new BencodeDictionary(ByteBuffer.wrap(Bencode.getBytes(packet)))));
+                }
+            } else {
+                receiveError(queryData, KRPCCodec.decodeError(message));
+            }
+
+        }
+    }
+
+    private void receiveError(QueryData queryData, KRPCError error) throws Exception {
+        try {
+            if (queryData.onResponse != null)
+                queryData.onResponse.onErrorReceived(queryData, error);
+        } finally {
+            if (queryData.future != null)
+                queryData.future.completeExceptionally(error);
+        }
+    }
+}
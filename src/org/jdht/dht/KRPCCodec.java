@@ -0,0 +1,230 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import org.jdht.bencode.Bencode;
+import org.jdht.bencode.BencodeDictionary;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * Encodes typed KRPC messages straight to the wire and decodes them back.
+ * Keys are written in their bencoded sort order, so nothing is sorted or
+ * built in between. Decoded byte strings are views into the packet.
+ */
+public class KRPCCodec {
+
+    private static final int ID_LENGTH = NodeId.LENGTH;
+
+    static final int MID_OFFSET = 0;
+    static final int TARGET_OFFSET = 1;
+
+    // Pre-encoded keys, in the order they must appear
+    private static final byte[] KEY_A = "1:a".getBytes();
+    private static final byte[] KEY_E = "1:e".getBytes();
+    private static final byte[] KEY_Q = "1:q".getBytes();
+    private static final byte[] KEY_R = "1:r".getBytes();
+    private static final byte[] KEY_T = "1:t".getBytes();
+    private static final byte[] KEY_Y = "1:y".getBytes();
+    private static final byte[] KEY_ID = "2:id".getBytes();
+    private static final byte[] KEY_IMPLIED_PORT = "12:implied_port".getBytes();
+    private static final byte[] KEY_INFO_HASH = "9:info_hash".getBytes();
+    private static final byte[] KEY_NODES = "5:nodes".getBytes();
+    private static final byte[] KEY_PORT = "4:port".getBytes();
+    private static final byte[] KEY_TARGET = "6:target".getBytes();
+    private static final byte[] KEY_TOKEN = "5:token".getBytes();
+    private static final byte[] KEY_VALUES = "6:values".getBytes();
+    private static final byte[] TYPE_QUERY = "1:q".getBytes();
+    private static final byte[] TYPE_RESPONSE = "1:r".getBytes();
+    private static final byte[] TYPE_ERROR = "1:e".getBytes();
+
+    public static void encodeQuery(ByteBuffer mID, KRPCQuery query, ByteBuffer out) {
+        encodeQuery(mID, query, out, null);
+    }
+
+    /**
+     * Encodes query and, if offsets is not null, records where the transaction id
+     * and the target or info_hash values start (TARGET_OFFSET is -1 if there is none)
+     */
+    static void encodeQuery(ByteBuffer mID, KRPCQuery query, ByteBuffer out, int[] offsets) {
+        int start = out.position();
+        int targetOffset = -1;
+        out.put((byte) 'd');
+        out.put(KEY_A);
+        out.put((byte) 'd');
+        out.put(KEY_ID);
+        Bencode.encodeByteString(query.getId(), out);
+        if (query instanceof KRPCQuery.FindNode) {
+            out.put(KEY_TARGET);
+            Bencode.encodeByteString(((KRPCQuery.FindNode) query).getTarget(), out);
+            targetOffset = out.position() - ((KRPCQuery.FindNode) query).getTarget().remaining() - start;
+        } else if (query instanceof KRPCQuery.GetPeers) {
+            out.put(KEY_INFO_HASH);
+            Bencode.encodeByteString(((KRPCQuery.GetPeers) query).getInfoHash(), out);
+            targetOffset = out.position() - ((KRPCQuery.GetPeers) query).getInfoHash().remaining() - start;
+        } else if (query instanceof KRPCQuery.AnnouncePeer) {
+            KRPCQuery.AnnouncePeer announce = (KRPCQuery.AnnouncePeer) query;
+            if (announce.isImpliedPort()) {
+                out.put(KEY_IMPLIED_PORT);
+                Bencode.encodeInteger(1, out);
+            }
+            out.put(KEY_INFO_HASH);
+            Bencode.encodeByteString(announce.getInfoHash(), out);
+            out.put(KEY_PORT);
+            Bencode.encodeInteger(announce.getPort(), out);
+            out.put(KEY_TOKEN);
+            Bencode.encodeByteString(announce.getToken(), out);
+        }
+        out.put((byte) 'e');
+        out.put(KEY_Q);
+        Bencode.encodeByteString(query.getMethod(), out);
+        out.put(KEY_T);
+        Bencode.encodeByteString(mID, out);
+        if (offsets != null) {
+            offsets[MID_OFFSET] = out.position() - mID.remaining() - start;
+            offsets[TARGET_OFFSET] = targetOffset;
+        }
+        out.put(KEY_Y);
+        out.put(TYPE_QUERY);
+        out.put((byte) 'e');
+    }
+
+    public static void encodeResponse(ByteBuffer mID, KRPCResponse response, ByteBuffer out) {
+        out.put((byte) 'd');
+        out.put(KEY_R);
+        out.put((byte) 'd');
+        out.put(KEY_ID);
+        Bencode.encodeByteString(response.getId(), out);
+        if (response instanceof KRPCResponse.FindNode) {
+            ByteBuffer nodes = ((KRPCResponse.FindNode) response).getNodes();
+            if (nodes != null) {
+                out.put(KEY_NODES);
+                Bencode.encodeByteString(nodes, out);
+            }
+        } else if (response instanceof KRPCResponse.GetPeers) {
+            KRPCResponse.GetPeers getPeers = (KRPCResponse.GetPeers) response;
+            if (getPeers.getNodes() != null) {
+                out.put(KEY_NODES);
+                Bencode.encodeByteString(getPeers.getNodes(), out);
+            }
+            if (getPeers.getToken() != null) {
+                out.put(KEY_TOKEN);
+                Bencode.encodeByteString(getPeers.getToken(), out);
+            }
+            if (getPeers.getValues() != null) {
+                out.put(KEY_VALUES);
+                out.put((byte) 'l');
+                for (ByteBuffer value : getPeers.getValues())
+                    Bencode.encodeByteString(value, out);
+                out.put((byte) 'e');
+            }
+        }
+        out.put((byte) 'e');
+        out.put(KEY_T);
+        Bencode.encodeByteString(mID, out);
+        out.put(KEY_Y);
+        out.put(TYPE_RESPONSE);
+        out.put((byte) 'e');
+    }
+
+    public static void encodeError(ByteBuffer mID, KRPCError error, ByteBuffer out) {
+        out.put((byte) 'd');
+        out.put(KEY_E);
+        out.put((byte) 'l');
+        Bencode.encodeInteger(error.getCode(), out);
+        Bencode.encodeByteString(error.getMessage(), out);
+        out.put((byte) 'e');
+        out.put(KEY_T);
+        Bencode.encodeByteString(mID, out);
+        out.put(KEY_Y);
+        out.put(TYPE_ERROR);
+        out.put((byte) 'e');
+    }
+
+    /**
+     * Decodes the query of a message whose type is "q".
+     * Throws KRPCError with the error to answer with when the query cannot be served.
+     */
+    public static KRPCQuery decodeQuery(BencodeDictionary message) throws IOException, KRPCError {
+        BencodeDictionary args = message.getDictionary("a");
+        if (args == null)
+            throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Query");
+
+        ByteBuffer id = args.getByteString("id");
+        if (id == null || id.remaining() != ID_LENGTH)
+            throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Node ID");
+
+        if (message.matches("q", KRPCQuery.PING)) {
+            return new KRPCQuery.Ping(id);
+
+        } else if (message.matches("q", KRPCQuery.FIND_NODE)) {
+            ByteBuffer target = args.getByteString("target");
+            if (target == null || target.remaining() != ID_LENGTH)
+                throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Target");
+            return new KRPCQuery.FindNode(id, target);
+
+        } else if (message.matches("q", KRPCQuery.GET_PEERS)) {
+            ByteBuffer infoHash = args.getByteString("info_hash");
+            if (infoHash == null || infoHash.remaining() != ID_LENGTH)
+                throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Info Hash");
+            return new KRPCQuery.GetPeers(id, infoHash);
+
+        } else if (message.matches("q", KRPCQuery.ANNOUNCE_PEER)) {
+            ByteBuffer infoHash = args.getByteString("info_hash");
+            ByteBuffer token = args.getByteString("token");
+            long port = args.getLong("port", -1);
+            boolean impliedPort = args.getLong("implied_port", 0) != 0;
+            if (infoHash == null || infoHash.remaining() != ID_LENGTH || token == null ||
+                    (!impliedPort && (port <= 0 || port > 0xffff)))
+                throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Announce");
+            return new KRPCQuery.AnnouncePeer(id, infoHash, (int) port, impliedPort, token);
+        }
+
+        throw new KRPCError(KRPCError.METHOD_UNKNOWN, "Method Unknown");
+    }
+
+    /**
+     * Decodes the response of a message whose type is "r", to a query of the given method.
+     * Throws KRPCError if the response is malformed.
+     */
+    public static KRPCResponse decodeResponse(String method, BencodeDictionary message) throws IOException, KRPCError {
+        BencodeDictionary response = message.getDictionary("r");
+        if (response == null)
+            throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Response");
+
+        ByteBuffer id = response.getByteString("id");
+        if (id == null || id.remaining() != ID_LENGTH)
+            throw new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Node ID");
+
+        switch (method){
+            case KRPCQuery.FIND_NODE:
+                return new KRPCResponse.FindNode(id, response.getByteString("nodes"));
+
+            case KRPCQuery.GET_PEERS:
+                return new KRPCResponse.GetPeers(id, response.getByteString("token"),
+                        response.getByteString("nodes"), response.getByteStringList("values"));
+
+            case KRPCQuery.ANNOUNCE_PEER:
+                return new KRPCResponse.AnnouncePeer(id);
+
+            default:
+                return new KRPCResponse.Ping(id);
+        }
+    }
+
+    /**
+     * Decodes the error of a message whose type is "e"
+     */
+    public static KRPCError decodeError(BencodeDictionary message) throws IOException {
+        List<?> error = message.getList("e");
+        if (error == null || error.size() < 2 || !(error.get(0) instanceof Long) ||
+                !(error.get(1) instanceof ByteBuffer))
+            return new KRPCError(KRPCError.PROTOCOL_ERROR, "Invalid Error");
+        return new KRPCError(((Long) error.get(0)).intValue(), Bencode.getString((ByteBuffer) error.get(1)));
+    }
+}
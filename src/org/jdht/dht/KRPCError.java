@@ -0,0 +1,36 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+/**
+ * A KRPC error message, either received from a node or to be sent to one
+ */
+public class KRPCError extends Exception {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final int GENERIC_ERROR = 201;
+    public static final int SERVER_ERROR = 202;
+    public static final int PROTOCOL_ERROR = 203;
+    public static final int METHOD_UNKNOWN = 204;
+
+    private final int code;
+
+    public KRPCError(int code, String message){
+        // Errors are protocol messages, the stack trace is never needed
+        super(message, null, false, false);
+        this.code = code;
+    }
+
+    public int getCode() {
+        return code;
+    }
+
+    @Override
+    public String toString() {
+        return code + " - " + getMessage();
+    }
+}
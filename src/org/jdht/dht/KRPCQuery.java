@@ -0,0 +1,127 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+
+public abstract class KRPCQuery {
+
+    public static final String PING = "ping";
+    public static final String FIND_NODE = "find_node";
+    public static final String GET_PEERS = "get_peers";
+    public static final String ANNOUNCE_PEER = "announce_peer";
+
+    private final ByteBuffer id;
+    private final NodeId senderId;
+
+    protected KRPCQuery(ByteBuffer id){
+        this.id = id;
+        this.senderId = NodeId.read(id);
+    }
+
+    /**
+     * The ID of the querying node
+     */
+    public ByteBuffer getId() {
+        return id;
+    }
+
+    /**
+     * getId() as a value, it does not refer to the packet
+     */
+    public NodeId getSenderId() {
+        return senderId;
+    }
+
+    public abstract String getMethod();
+
+    public static class Ping extends KRPCQuery {
+
+        public Ping(ByteBuffer id){
+            super(id);
+        }
+
+        @Override
+        public String getMethod() {
+            return PING;
+        }
+    }
+
+    public static class FindNode extends KRPCQuery {
+
+        private final ByteBuffer target;
+
+        public FindNode(ByteBuffer id, ByteBuffer target){
+            super(id);
+            this.target = target;
+        }
+
+        public ByteBuffer getTarget() {
+            return target;
+        }
+
+        @Override
+        public String getMethod() {
+            return FIND_NODE;
+        }
+    }
+
+    public static class GetPeers extends KRPCQuery {
+
+        private final ByteBuffer infoHash;
+
+        public GetPeers(ByteBuffer id, ByteBuffer infoHash){
+            super(id);
+            this.infoHash = infoHash;
+        }
+
+        public ByteBuffer getInfoHash() {
+            return infoHash;
+        }
+
+        @Override
+        public String getMethod() {
+            return GET_PEERS;
+        }
+    }
+
+    public static class AnnouncePeer extends KRPCQuery {
+
+        private final ByteBuffer infoHash;
+        private final int port;
+        private final boolean impliedPort;
+        private final ByteBuffer token;
+
+        public AnnouncePeer(ByteBuffer id, ByteBuffer infoHash, int port, boolean impliedPort, ByteBuffer token){
+            super(id);
+            this.infoHash = infoHash;
+            this.port = port;
+            this.impliedPort = impliedPort;
+            this.token = token;
+        }
+
+        public ByteBuffer getInfoHash() {
+            return infoHash;
+        }
+
+        public int getPort() {
+            return port;
+        }
+
+        public boolean isImpliedPort() {
+            return impliedPort;
+        }
+
+        public ByteBuffer getToken() {
+            return token;
+        }
+
+        @Override
+        public String getMethod() {
+            return ANNOUNCE_PEER;
+        }
+    }
+}
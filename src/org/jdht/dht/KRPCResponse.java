@@ -0,0 +1,97 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+public abstract class KRPCResponse {
+
+    private final ByteBuffer id;
+    private final NodeId senderId;
+
+    protected KRPCResponse(ByteBuffer id){
+        this.id = id;
+        this.senderId = NodeId.read(id);
+    }
+
+    /**
+     * The ID of the responding node
+     */
+    public ByteBuffer getId() {
+        return id;
+    }
+
+    /**
+     * getId() as a value, it does not refer to the packet
+     */
+    public NodeId getSenderId() {
+        return senderId;
+    }
+
+    public static class Ping extends KRPCResponse {
+
+        public Ping(ByteBuffer id){
+            super(id);
+        }
+    }
+
+    public static class FindNode extends KRPCResponse {
+
+        private final ByteBuffer nodes;
+
+        public FindNode(ByteBuffer id, ByteBuffer nodes){
+            super(id);
+            this.nodes = nodes;
+        }
+
+        /**
+         * Compact node info of the closest nodes, may be null
+         */
+        public ByteBuffer getNodes() {
+            return nodes;
+        }
+    }
+
+    public static class GetPeers extends KRPCResponse {
+
+        private final ByteBuffer token;
+        private final ByteBuffer nodes;
+        private final List<ByteBuffer> values;
+
+        public GetPeers(ByteBuffer id, ByteBuffer token, ByteBuffer nodes, List<ByteBuffer> values){
+            super(id);
+            this.token = token;
+            this.nodes = nodes;
+            this.values = values;
+        }
+
+        public ByteBuffer getToken() {
+            return token;
+        }
+
+        /**
+         * Compact node info of the closest nodes, null when peers were returned
+         */
+        public ByteBuffer getNodes() {
+            return nodes;
+        }
+
+        /**
+         * Compact peer info, null when nodes were returned
+         */
+        public List<ByteBuffer> getValues() {
+            return values;
+        }
+    }
+
+    public static class AnnouncePeer extends KRPCResponse {
+
+        public AnnouncePeer(ByteBuffer id){
+            super(id);
+        }
+    }
+}
@@ -0,0 +1,75 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+
+/**
+ * A query shape encoded once. Writing it copies the encoded bytes and
+ * patches in the transaction id, and the target or info_hash if any.
+ * Everything else, including our own id, is reused as is.
+ */
+class KRPCTemplate {
+
+    private final byte[] message;
+    private final String method;
+    private final ByteBuffer id;
+    private final int mIDOffset;
+    private final int mIDLength;
+    private final int targetOffset;
+    private final int targetLength;
+
+    public KRPCTemplate(ByteBuffer mID, KRPCQuery query){
+        ByteBuffer buffer = ByteBuffer.allocate(512);
+        int[] offsets = new int[2];
+        KRPCCodec.encodeQuery(mID, query, buffer, offsets);
+        message = new byte[buffer.position()];
+        System.arraycopy(buffer.array(), 0, message, 0, message.length);
+        method = query.getMethod();
+        id = query.getId();
+        mIDOffset = offsets[KRPCCodec.MID_OFFSET];
+        mIDLength = mID.remaining();
+        targetOffset = offsets[KRPCCodec.TARGET_OFFSET];
+        ByteBuffer target = getTarget(query);
+        targetLength = target == null ? 0 : target.remaining();
+    }
+
+    /**
+     * Can query with this transaction id be written from this template
+     */
+    public boolean matches(ByteBuffer mID, KRPCQuery query){
+        if (!method.equals(query.getMethod()) || mID.remaining() != mIDLength || !id.equals(query.getId()))
+            return false;
+        ByteBuffer target = getTarget(query);
+        return target == null ? targetOffset < 0 : target.remaining() == targetLength;
+    }
+
+    public void write(ByteBuffer mID, KRPCQuery query, ByteBuffer out){
+        int start = out.position();
+        out.put(message);
+        patch(out, start + mIDOffset, mID);
+        if (targetOffset >= 0)
+            patch(out, start + targetOffset, getTarget(query));
+    }
+
+    private static void patch(ByteBuffer out, int index, ByteBuffer value){
+        int offset = value.position();
+        for (int i = 0; i < value.remaining(); i++)
+            out.put(index + i, value.get(offset + i));
+    }
+
+    public static boolean isSupported(KRPCQuery query){
+        return query instanceof KRPCQuery.Ping || getTarget(query) != null;
+    }
+
+    private static ByteBuffer getTarget(KRPCQuery query){
+        if (query instanceof KRPCQuery.FindNode)
+            return ((KRPCQuery.FindNode) query).getTarget();
+        if (query instanceof KRPCQuery.GetPeers)
+            return ((KRPCQuery.GetPeers) query).getInfoHash();
+        return null;
+    }
+}
@@ -0,0 +1,82 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latency percentiles over the last few hundred round trips to any node.
+ * Handlers add samples into a ring without locking. Readers sort a snapshot of it,
+ * redone only every few samples, so reading is cheap too.
+ */
+public class LatencyTracker {
+
+    private static final int WINDOW = 256;
+    private static final int RESORT_EVERY = 32; // samples
+
+    private static class Snapshot {
+        public final long[] sorted;
+        public final long taken; // Samples added when it was taken
+
+        public Snapshot(long[] sorted, long taken){
+            this.sorted = sorted;
+            this.taken = taken;
+        }
+    }
+
+    private final AtomicLongArray samples = new AtomicLongArray(WINDOW);
+    private final AtomicLong added = new AtomicLong();
+    private volatile Snapshot snapshot = new Snapshot(new long[0], 0);
+
+    public LatencyTracker(){
+        for (int i = 0; i < WINDOW; i++)
+            samples.set(i, -1); // Not filled yet
+    }
+
+    public void addSample(long rtt){
+        if (rtt < 0)
+            return;
+        samples.set((int) (added.getAndIncrement() & (WINDOW - 1)), rtt);
+    }
+
+    /**
+     * The latency in ms under which percentile (0 to 100) of the round trips were, -1 without samples
+     */
+    public long getPercentile(int percentile){
+        Snapshot snapshot = this.snapshot;
+        long count = added.get();
+        // Sort often while we have few samples, they move a lot
+        if (count != snapshot.taken && (count - snapshot.taken >= RESORT_EVERY || count <= RESORT_EVERY))
+            snapshot = resort(count);
+        long[] sorted = snapshot.sorted;
+        if (sorted.length == 0)
+            return -1;
+        int index = (int) ((long) Math.max(0, Math.min(100, percentile)) * (sorted.length - 1) / 100);
+        return sorted[index];
+    }
+
+    public int getSampleCount(){
+        return (int) Math.min(added.get(), WINDOW);
+    }
+
+    private Snapshot resort(long count){
+        long[] sorted = new long[WINDOW];
+        int filled = 0;
+        for (int i = 0; i < WINDOW; i++) {
+            long rtt = samples.get(i);
+            if (rtt >= 0)
+                sorted[filled++] = rtt;
+        }
+        sorted = Arrays.copyOf(sorted, filled);
+        Arrays.sort(sorted);
+        // Readers racing here each take their own, either is as good
+        Snapshot snapshot = new Snapshot(sorted, count);
+        this.snapshot = snapshot;
+        return snapshot;
+    }
+}
@@ -0,0 +1,412 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeMap;
+
+/**
+ * An iterative Kademlia lookup. Keeps a bounded shortlist of candidates ordered by
+ * XOR distance to the target and queries the closest ones, at most alpha at a time.
+ * Nodes that answer bring closer candidates. The lookup is done once the k closest
+ * candidates that did not fail have all answered.
+ * The queries themselves are sent by a Querier, which reports back through
+ * responded() and failed().
+ * With hedging on, a query still unanswered well past the node's usual round trip
+ * stops holding up the lookup, the next candidate is queried alongside it.
+ * A lookup short of candidates can keep itself in a hungry set, so whoever comes
+ * across nodes offers them to the lookups needing them rather than to every one.
+ */
+public class Lookup {
+
+    public static final int DEFAULT_K = 8;
+    public static final int DEFAULT_ALPHA = 3;
+    public static final int DEFAULT_HEDGE_BUDGET = 3; // Hedges per lookup
+    private static final int SHORTLIST_FACTOR = 4; // Shortlist holds k * this candidates
+    private static final int HEDGE_PERCENTILE = 90; // Of all round trips, for nodes that never answered
+    private static final long MIN_HEDGE_DELAY = 50; // 50 ms
+
+    private static final int STATE_FRESH = 0;
+    private static final int STATE_IN_FLIGHT = 1;
+    private static final int STATE_RESPONDED = 2;
+    private static final int STATE_FAILED = 3;
+
+    public static interface Querier {
+        /**
+         * Sends the lookup's query to node, returns false if it could not be sent
+         */
+        public boolean query(Lookup lookup, Node node);
+
+        /**
+         * Called once, when the lookup converged, ran out of candidates or was finished
+         */
+        public void finished(Lookup lookup);
+    }
+
+    private static class Candidate {
+        public final Node node;
+        public int state = STATE_FRESH;
+        public boolean hedged = false; // Slow, no longer counted among the closest nor in flight
+        public TimingWheel.Timeout hedgeTimeout = null;
+
+        public Candidate(Node node){
+            this.node = node;
+        }
+    }
+
+    private final ByteBuffer target;
+    private final NodeId targetId;
+    private final int k;
+    private final int alpha;
+    private final int capacity;
+    private final Querier querier;
+    private final TreeMap<NodeId, Candidate> shortlist;
+    private int inFlight = 0;
+    private int queriesSent = 0;
+    private boolean finished = false;
+    private boolean converged = false;
+    private TimingWheel timer = null;
+    private LatencyTracker latency = null;
+    private int hedgeBudget = 0;
+    private int hedgesSent = 0;
+    private int failedCount = 0;
+    private Set<Lookup> hungryIndex = null;
+    private boolean hungry = false;
+    private TimingWheel.Timeout timeout = null;
+
+    public Lookup(ByteBuffer target, int k, int alpha, Querier querier){
+        if (k <= 0 || alpha <= 0)
+            throw new IllegalArgumentException("Bad k or alpha");
+        this.target = target;
+        this.targetId = NodeId.read(target);
+        this.k = k;
+        this.alpha = alpha;
+        this.capacity = k * SHORTLIST_FACTOR;
+        this.querier = querier;
+        this.shortlist = new TreeMap<>(new NodeId.DistanceComparator(targetId));
+    }
+
+    public Lookup(ByteBuffer target, Querier querier){
+        this(target, DEFAULT_K, DEFAULT_ALPHA, querier);
+    }
+
+    public ByteBuffer getTarget() {
+        return target;
+    }
+
+    public NodeId getTargetId() {
+        return targetId;
+    }
+
+    /**
+     * Lets up to budget slow queries be hedged, the delay comes from the node's round trips
+     * or, if it never answered, from latency. Use before start().
+     */
+    public synchronized void setHedging(TimingWheel timer, LatencyTracker latency, int budget){
+        this.timer = timer;
+        this.latency = latency;
+        this.hedgeBudget = timer == null ? 0 : budget;
+    }
+
+    /**
+     * The lookup stays in index while it has fewer than k candidates that did not fail,
+     * index must be thread safe. Use before start().
+     */
+    public synchronized void setHungryIndex(Set<Lookup> index){
+        this.hungryIndex = index;
+        updateHungry();
+    }
+
+    /**
+     * timeout is cancelled once the lookup ends, or straight away if it already did
+     */
+    public void setTimeout(TimingWheel.Timeout timeout){
+        synchronized (this){
+            if (!finished) {
+                this.timeout = timeout;
+                return;
+            }
+        }
+        timeout.cancel();
+    }
+
+    /**
+     * Queries the closest candidates given so far
+     */
+    public void start(){
+        pump();
+    }
+
+    /**
+     * Offers a candidate to a running lookup, it is queried if it is among the closest.
+     * Returns false if it was not taken.
+     */
+    public boolean offer(Node node){
+        boolean added;
+        synchronized (this){
+            added = add(node);
+            updateHungry();
+        }
+        if (added)
+            pump();
+        return added;
+    }
+
+    /**
+     * Adds candidates without querying them, use before start()
+     */
+    public synchronized void addCandidates(Collection<Node> nodes){
+        for (Node node : nodes)
+            add(node);
+        updateHungry();
+    }
+
+    /**
+     * node answered, closer are the nodes it knows closer to the target (may be null)
+     */
+    public void responded(Node node, Collection<Node> closer){
+        synchronized (this){
+            Candidate candidate = shortlist.get(node.getId());
+            if (candidate == null || candidate.state != STATE_IN_FLIGHT)
+                return;
+            candidate.state = STATE_RESPONDED;
+            landed(candidate);
+            if (closer != null) {
+                for (Node n : closer)
+                    add(n);
+                updateHungry();
+            }
+        }
+        pump();
+    }
+
+    /**
+     * node did not answer, or answered with an error
+     */
+    public void failed(Node node){
+        synchronized (this){
+            Candidate candidate = shortlist.get(node.getId());
+            if (candidate == null || candidate.state != STATE_IN_FLIGHT)
+                return;
+            candidate.state = STATE_FAILED;
+            failedCount++;
+            landed(candidate);
+            updateHungry();
+        }
+        pump();
+    }
+
+    private void updateHungry(){
+        if (hungryIndex == null)
+            return;
+        boolean nowHungry = !finished && shortlist.size() - failedCount < k;
+        if (nowHungry == hungry)
+            return;
+        hungry = nowHungry;
+        if (hungry)
+            hungryIndex.add(this);
+        else
+            hungryIndex.remove(this);
+    }
+
+    private void landed(Candidate candidate){
+        if (candidate.hedgeTimeout != null)
+            candidate.hedgeTimeout.cancel();
+        if (!candidate.hedged)
+            inFlight--;
+    }
+
+    private void hedge(Candidate candidate){
+        synchronized (this){
+            if (finished || candidate.state != STATE_IN_FLIGHT || candidate.hedged || hedgesSent >= hedgeBudget)
+                return;
+            candidate.hedged = true;
+            inFlight--;
+            hedgesSent++;
+        }
+        if (Logger.verbose)
+            Logger.log("Hedging slow query to " + candidate.node.getIp().toString());
+        pump();
+    }
+
+    /**
+     * How long to wait on node before hedging, -1 if its query times out first anyway
+     */
+    private long getHedgeDelay(Node node){
+        long delay;
+        long rtt = node.getSmoothedRtt();
+        if (rtt >= 0)
+            delay = rtt + 2 * node.getRttVariance();
+        else
+            delay = latency == null ? -1 : latency.getPercentile(HEDGE_PERCENTILE);
+        if (delay < 0)
+            delay = node.getQueryTimeout() / 2;
+        delay = Math.max(MIN_HEDGE_DELAY, delay);
+        return delay < node.getQueryTimeout() ? delay : -1;
+    }
+
+    /**
+     * Ends the lookup early, answers still on their way are ignored
+     */
+    public void finish(){
+        synchronized (this){
+            if (finished)
+                return;
+            finished = true;
+            updateHungry();
+        }
+        ended();
+    }
+
+    // Once, after finished was set
+    private void ended(){
+        TimingWheel.Timeout timeout;
+        synchronized (this){
+            timeout = this.timeout;
+            this.timeout = null;
+        }
+        if (timeout != null)
+            timeout.cancel();
+        querier.finished(this);
+    }
+
+    public synchronized boolean isFinished(){
+        return finished;
+    }
+
+    /**
+     * True if the lookup ran until the closest nodes answered or it ran out of them,
+     * false if it was finish()ed early or still runs
+     */
+    public synchronized boolean isConverged(){
+        return converged;
+    }
+
+    /**
+     * The closest nodes that answered, at most k of them, closest first
+     */
+    public synchronized List<Node> getClosest(){
+        List<Node> closest = new ArrayList<>(k);
+        for (Candidate candidate : shortlist.values()) {
+            if (candidate.state == STATE_RESPONDED)
+                closest.add(candidate.node);
+            if (closest.size() >= k)
+                break;
+        }
+        return closest;
+    }
+
+    public synchronized int getInFlight(){
+        return inFlight;
+    }
+
+    public synchronized int getQueriesSent(){
+        return queriesSent;
+    }
+
+    public synchronized int getHedgesSent(){
+        return hedgesSent;
+    }
+
+    private boolean add(Node node){
+        NodeId id = node.getId();
+        if (finished || id == null || shortlist.containsKey(id))
+            return false;
+        // Full and farther than everything we have, don't bother
+        if (shortlist.size() >= capacity && shortlist.comparator().compare(id, shortlist.lastKey()) > 0)
+            return false;
+        shortlist.put(id, new Candidate(node));
+        trim();
+        return true;
+    }
+
+    private void trim(){
+        // Drop the farthest, but keep the ones we wait for so inFlight stays right
+        Iterator<Candidate> it = shortlist.descendingMap().values().iterator();
+        while (shortlist.size() > capacity && it.hasNext()) {
+            int state = it.next().state;
+            if (state != STATE_IN_FLIGHT) {
+                if (state == STATE_FAILED)
+                    failedCount--;
+                it.remove();
+            }
+        }
+    }
+
+    private void pump(){
+        List<Candidate> toQuery = null;
+        boolean done;
+        boolean hedging;
+
+        synchronized (this){
+            if (finished)
+                return;
+
+            int closest = 0;
+            boolean allResponded = true;
+            for (Candidate candidate : shortlist.values()) {
+                if (candidate.state == STATE_FAILED || candidate.hedged && candidate.state == STATE_IN_FLIGHT)
+                    continue;
+                if (closest++ >= k)
+                    break;
+                if (candidate.state != STATE_RESPONDED)
+                    allResponded = false;
+                if (candidate.state == STATE_FRESH && inFlight < alpha) {
+                    candidate.state = STATE_IN_FLIGHT;
+                    inFlight++;
+                    queriesSent++;
+                    if (toQuery == null)
+                        toQuery = new ArrayList<>(alpha);
+                    toQuery.add(candidate);
+                }
+            }
+
+            // Also true when we ran out of candidates
+            done = allResponded;
+            if (done) {
+                finished = true;
+                converged = true;
+                updateHungry();
+            }
+            hedging = hedgesSent < hedgeBudget;
+        }
+
+        if (done) {
+            ended();
+            return;
+        }
+
+        if (toQuery != null) {
+            for (final Candidate candidate : toQuery) {
+                if (!querier.query(this, candidate.node)) {
+                    failed(candidate.node);
+                    continue;
+                }
+                long delay = hedging ? getHedgeDelay(candidate.node) : -1;
+                if (delay < 0)
+                    continue;
+                TimingWheel.Timeout timeout = timer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        hedge(candidate);
+                    }
+                }, delay);
+                synchronized (this){
+                    // It may have answered already
+                    if (candidate.state == STATE_IN_FLIGHT)
+                        candidate.hedgeTimeout = timeout;
+                    else
+                        timeout.cancel();
+                }
+            }
+        }
+    }
+}
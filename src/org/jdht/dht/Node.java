@@ -6,30 +6,41 @@ package org.jdht.dht;
 
 
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 
 public class Node {
 
-    private static final int MAX_MESSAGE_ID = 0xffff;
+    // Query timeout bounds, see getQueryTimeout()
+    public static final long MIN_QUERY_TIMEOUT = 500; // 0.5 sec
+    public static final long MAX_QUERY_TIMEOUT = 15*1000; // 15 sec
+    public static final long INITIAL_QUERY_TIMEOUT = 3000; // 3 sec, until we have a sample
+    public static final long MAX_BACKOFF_TIMEOUT = 4000; // 4 sec, unanswered queries back off no further
 
     private InetAddress ip = null;
     private ByteBuffer nodeId;
+    private NodeId id; // nodeId as a value, for the routing table and lookups
     private int port;
-    private int mID = 0;
     private boolean permanent = false;
     private long lastSeen = 0;
     private byte[] compactInfo = null;
     private boolean questionable = false;
+    private InetSocketAddress socketAddress = null;
+    private TimingWheel.Timeout expiryTimeout = null;
+    private long smoothedRtt = -1;
+    private long rttVariance = 0;
+    private long queryTimeout = INITIAL_QUERY_TIMEOUT;
 
     public Node(ByteBuffer nodeId, InetAddress ip, int port, boolean permanent){
         this.ip = ip;
         this.nodeId = nodeId;
+        this.id = nodeId == null ? null : NodeId.read(nodeId);
         this.port = port;
         this.permanent = permanent;
         if (nodeId != null && ip != null){
-            ByteBuffer cibb = ByteBuffer.allocate(nodeId.array().length + ip.getAddress().length + 2);
-            cibb.put(nodeId.array());
+            ByteBuffer cibb = ByteBuffer.allocate(nodeId.remaining() + ip.getAddress().length + 2);
+            cibb.put(nodeId.duplicate());
             cibb.put(ip.getAddress());
             cibb.put((byte) ((port >> 8) & 0xff));
             cibb.put((byte) (port & 0xff));
@@ -41,12 +52,16 @@ public class Node {
         this(nodeId, ip, port, false);
     }
 
+    public Node(NodeId id, InetAddress ip, int port, boolean permanent){
+        this(id.toByteBuffer(), ip, port, permanent);
+    }
+
     public Node(InetAddress ip, int port, boolean permanent){
-        this(null, ip, port, permanent);
+        this((ByteBuffer) null, ip, port, permanent);
     }
 
     public Node(InetAddress ip, int port){
-        this(null, ip, port, false);
+        this((ByteBuffer) null, ip, port, false);
     }
 
     public Node(ByteBuffer compactInfo, int ipLength, boolean permanent) throws UnknownHostException {
@@ -57,19 +72,26 @@ public class Node {
         byte[] newNodePortBA = new byte[2];
         compactInfo.get(newNodePortBA);
         nodeId = ByteBuffer.wrap(newNodeIDBA);
+        id = NodeId.read(newNodeIDBA);
         ip = InetAddress.getByAddress(newNodeIPBA);
         port = ((newNodePortBA[0] & 0xFF) << 8) | (newNodePortBA[1] & 0xFF);
         this.permanent = permanent;
-        this.compactInfo = compactInfo.array();
+        // compactInfo may hold more nodes, or be a view into a packet
+        this.compactInfo = new byte[newNodeIDBA.length + ipLength + 2];
+        System.arraycopy(newNodeIDBA, 0, this.compactInfo, 0, newNodeIDBA.length);
+        System.arraycopy(newNodeIPBA, 0, this.compactInfo, newNodeIDBA.length, ipLength);
+        System.arraycopy(newNodePortBA, 0, this.compactInfo, newNodeIDBA.length + ipLength, 2);
     }
 
     public Node(int port){
         this.nodeId = IDGenerator.generateRandomID();
+        this.id = NodeId.read(nodeId);
         this.port = port;
     }
 
     public Node(ByteBuffer nodeId, int port){
         this.nodeId = nodeId;
+        this.id = NodeId.read(nodeId);
         this.port = port;
     }
 
@@ -81,10 +103,24 @@ public class Node {
         return nodeId;
     }
 
+    /**
+     * The node ID as a value, null if not known yet
+     */
+    public NodeId getId() {
+        return id;
+    }
+
     public int getPort() {
         return port;
     }
 
+    public InetSocketAddress getSocketAddress() {
+        // Racing threads may both create it, they are equal anyway
+        if (socketAddress == null)
+            socketAddress = new InetSocketAddress(ip, port);
+        return socketAddress;
+    }
+
     public byte[] getCompactInfo() {
         return compactInfo;
     }
@@ -117,9 +153,59 @@ public class Node {
         return questionable;
     }
 
-    public synchronized ByteBuffer getMID(){
-        mID = (mID + 1) % MAX_MESSAGE_ID;
-        byte[] bytes = {(byte) (mID & 0xFF), (byte) ((mID & 0xFF00) >>> 8)};
-        return ByteBuffer.wrap(bytes);
+    /**
+     * Updates the RTT estimate with a measured round trip, as in RFC 6298
+     */
+    public synchronized void addRttSample(long rtt){
+        if (rtt < 0)
+            return;
+        if (smoothedRtt < 0) {
+            smoothedRtt = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            // beta = 1/4, alpha = 1/8
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRtt - rtt)) / 4;
+            smoothedRtt = (7 * smoothedRtt + rtt) / 8;
+        }
+        queryTimeout = clampQueryTimeout(smoothedRtt + Math.max(1, 4 * rttVariance));
+    }
+
+    /**
+     * A query went unanswered, back off until the next sample. A node that went away never
+     * gives one, so the back off stops at a few seconds, or lookups would wait on it for long.
+     */
+    public synchronized void backOff(){
+        if (queryTimeout < MAX_BACKOFF_TIMEOUT)
+            queryTimeout = Math.min(MAX_BACKOFF_TIMEOUT, queryTimeout * 2);
+    }
+
+    /**
+     * Smoothed RTT in ms, -1 if the node never answered
+     */
+    public synchronized long getSmoothedRtt(){
+        return smoothedRtt;
+    }
+
+    public synchronized long getRttVariance(){
+        return rttVariance;
+    }
+
+    /**
+     * How long to wait for an answer to a query sent to this node
+     */
+    public synchronized long getQueryTimeout(){
+        return queryTimeout;
+    }
+
+    private static long clampQueryTimeout(long timeout){
+        return Math.min(MAX_QUERY_TIMEOUT, Math.max(MIN_QUERY_TIMEOUT, timeout));
+    }
+
+    synchronized TimingWheel.Timeout getExpiryTimeout(){
+        return expiryTimeout;
+    }
+
+    synchronized void setExpiryTimeout(TimingWheel.Timeout expiryTimeout){
+        this.expiryTimeout = expiryTimeout;
     }
 }
@@ -0,0 +1,209 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * A 160 bit node ID, or info_hash, held in three primitives. Hashing, comparing and
+ * XOR distances work on those directly, none of them allocates.
+ */
+public final class NodeId implements Comparable<NodeId> {
+
+    public static final int LENGTH = 20; // bytes
+    public static final int BITS = LENGTH * 8;
+
+    private static final Random random = new Random();
+
+    private final long high; // Bytes 0 - 7
+    private final long middle; // Bytes 8 - 15
+    private final int low; // Bytes 16 - 19
+    private final int hash;
+
+    public NodeId(long high, long middle, int low){
+        this.high = high;
+        this.middle = middle;
+        this.low = low;
+        long h = high * 31 + middle;
+        hash = (int) (h ^ (h >>> 32)) * 31 + low;
+    }
+
+    /**
+     * Reads the LENGTH bytes at id's position, without moving it
+     */
+    public static NodeId read(ByteBuffer id){
+        if (id.remaining() < LENGTH)
+            throw new IllegalArgumentException("Short ID, " + id.remaining() + " bytes");
+        int offset = id.position();
+        return new NodeId(getLong(id, offset), getLong(id, offset + 8), getInt(id, offset + 16));
+    }
+
+    public static NodeId read(byte[] id){
+        return read(ByteBuffer.wrap(id));
+    }
+
+    public static NodeId random(){
+        return new NodeId(random.nextLong(), random.nextLong(), random.nextInt());
+    }
+
+    /**
+     * A random ID whose highest bit differing from base is bit range (159 is the topmost),
+     * so it falls in the bucket of that range
+     */
+    public static NodeId random(NodeId base, int range){
+        if (range < 0 || range >= BITS)
+            throw new IllegalArgumentException("Bad range " + range);
+        // Same as base above range, flipped at range, random below
+        NodeId r = random();
+        return new NodeId(
+                mix(base.high, r.high, range - 96, 64),
+                mix(base.middle, r.middle, range - 32, 64),
+                (int) mix(base.low & 0xffffffffL, r.low & 0xffffffffL, range, 32));
+    }
+
+    // Keeps base's bits above bit, flips bit, takes r's below it. bit counts from the word's lowest.
+    private static long mix(long base, long r, int bit, int width){
+        if (bit < 0)
+            return base; // The word is above bit
+        if (bit >= width)
+            return r; // The word is below bit
+        long below = (1L << bit) - 1;
+        long flip = 1L << bit;
+        long above = width == 64 ? ~(below | flip) : ~(below | flip) & 0xffffffffL;
+        return (base & above) | ((base ^ flip) & flip) | (r & below);
+    }
+
+    private static long getLong(ByteBuffer buffer, int index){
+        long value = 0;
+        for (int i = 0; i < 8; i++)
+            value = (value << 8) | (buffer.get(index + i) & 0xff);
+        return value;
+    }
+
+    private static int getInt(ByteBuffer buffer, int index){
+        int value = 0;
+        for (int i = 0; i < 4; i++)
+            value = (value << 8) | (buffer.get(index + i) & 0xff);
+        return value;
+    }
+
+    public void writeTo(ByteBuffer out){
+        out.putLong(high);
+        out.putLong(middle);
+        out.putInt(low);
+    }
+
+    public byte[] getBytes(){
+        ByteBuffer buffer = ByteBuffer.allocate(LENGTH);
+        writeTo(buffer);
+        return buffer.array();
+    }
+
+    public ByteBuffer toByteBuffer(){
+        return ByteBuffer.wrap(getBytes());
+    }
+
+    /**
+     * Number of leading bits this and other have in common, BITS if equal
+     */
+    public int commonPrefixLength(NodeId other){
+        long x = high ^ other.high;
+        if (x != 0)
+            return Long.numberOfLeadingZeros(x);
+        x = middle ^ other.middle;
+        if (x != 0)
+            return 64 + Long.numberOfLeadingZeros(x);
+        return 128 + Integer.numberOfLeadingZeros(low ^ other.low);
+    }
+
+    /**
+     * Index of the highest bit that differs from other (159 is the topmost), -1 if equal.
+     * This is the bucket range other falls in when this is our ID.
+     */
+    public int highestDifferingBit(NodeId other){
+        return BITS - 1 - commonPrefixLength(other);
+    }
+
+    /**
+     * Bit bit of the ID, 159 is the topmost
+     */
+    public boolean testBit(int bit){
+        if (bit >= 96)
+            return (high >>> (bit - 96) & 1) != 0;
+        if (bit >= 32)
+            return (middle >>> (bit - 32) & 1) != 0;
+        return (low >>> bit & 1) != 0;
+    }
+
+    public NodeId xor(NodeId other){
+        return new NodeId(high ^ other.high, middle ^ other.middle, low ^ other.low);
+    }
+
+    /**
+     * Whether a is closer to target than b by XOR distance, as a comparator result
+     */
+    public static int compareDistance(NodeId target, NodeId a, NodeId b){
+        int c = Long.compareUnsigned(a.high ^ target.high, b.high ^ target.high);
+        if (c != 0)
+            return c;
+        c = Long.compareUnsigned(a.middle ^ target.middle, b.middle ^ target.middle);
+        if (c != 0)
+            return c;
+        return Integer.compareUnsigned(a.low ^ target.low, b.low ^ target.low);
+    }
+
+    /**
+     * Orders IDs by XOR distance to target, closest first
+     */
+    public static class DistanceComparator implements Comparator<NodeId> {
+        private final NodeId target;
+
+        public DistanceComparator(NodeId target) {
+            this.target = target;
+        }
+
+        @Override
+        public int compare(NodeId a, NodeId b) {
+            return compareDistance(target, a, b);
+        }
+    }
+
+    /**
+     * As unsigned 160 bit numbers
+     */
+    @Override
+    public int compareTo(NodeId other) {
+        int c = Long.compareUnsigned(high, other.high);
+        if (c != 0)
+            return c;
+        c = Long.compareUnsigned(middle, other.middle);
+        if (c != 0)
+            return c;
+        return Integer.compareUnsigned(low, other.low);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o)
+            return true;
+        if (!(o instanceof NodeId))
+            return false;
+        NodeId other = (NodeId) o;
+        return high == other.high && middle == other.middle && low == other.low;
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%016X%016X%08X", high, middle, low);
+    }
+}
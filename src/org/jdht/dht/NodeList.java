@@ -4,15 +4,18 @@
 
 package org.jdht.dht;
 
-
 import java.lang.ref.WeakReference;
 import java.net.InetAddress;
-import java.nio.ByteBuffer;
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * The routing table. Changes are made under the list's lock, while lookups such as get()
+ * and findClosest() read the node map and buckets as they are, without it, so answering
+ * queries never waits on changes or maintenance. Pings and explores are sent outside the lock.
+ */
 public class NodeList {
 
     public static final long CLEAN_INTERVAL = 60*1000; // 60 sec
@@ -25,39 +28,61 @@ public class NodeList {
     public static final int EXPLORE_MAX_NODES = 600;
     public static final int MAX_NODES = 800;
 
-    private final HashMap<ByteBuffer, Node> nodeMap = new HashMap<>();
+    private final ConcurrentHashMap<NodeId, Node> nodeMap = new ConcurrentHashMap<>();
     private final BucketSet bucketSet;
-    private long lastCleanTime = 0;
+    private final TimingWheel timer;
+    private final WeakReference<DHT> dhtWeakReference;
     private long lastExploreTime = 0;
-    private ByteBuffer myNodeID;
+    private NodeId myNodeID;
 
-    public NodeList(ByteBuffer myNodeID){
-        lastCleanTime = System.currentTimeMillis();
+    /**
+     * Every node gets a check scheduled on timer, which pings it when it goes quiet
+     * and removes it when it expires
+     */
+    public NodeList(NodeId myNodeID, TimingWheel timer, DHT dht){
         bucketSet = new BucketSet(myNodeID, new BucketTrimmer(this));
         this.myNodeID = myNodeID;
+        this.timer = timer;
+        this.dhtWeakReference = new WeakReference<DHT>(dht);
     }
 
     public synchronized void clear(){
+        for (Node node : nodeMap.values())
+            disarm(node);
         nodeMap.clear();
         bucketSet.clear();
     }
 
-    public synchronized int size(){
+    public int size(){
         return nodeMap.size();
     }
 
-    public synchronized int numOfBuckets(){
+    public int numOfBuckets(){
         return bucketSet.getBuckets().size();
     }
 
-    public synchronized Node get(ByteBuffer nid) {
+    public Node get(NodeId nid) {
         return nodeMap.get(nid);
     }
 
-    public synchronized Node putIfAbsent(ByteBuffer nodeId, InetAddress ip, int port, boolean isPermanent, boolean returnAnyway) {
+    public Node putIfAbsent(NodeId nodeId, InetAddress ip, int port, boolean isPermanent, boolean returnAnyway) {
         if (nodeMap.size() >= MAX_NODES || nodeId.equals(myNodeID))
             return returnAnyway ? new Node(nodeId, ip, port, isPermanent) : null;
+        // Mostly we know it already, which needs no lock
+        Node node = nodeMap.get(nodeId);
+        if (node == null)
+            return add(nodeId, ip, port, isPermanent, returnAnyway);
+        if (!ip.equals(node.getIp()) || port != node.getPort())
+            return returnAnyway ? node : null;
+        node.setPermanent(isPermanent);
+        return node;
+    }
+
+    private synchronized Node add(NodeId nodeId, InetAddress ip, int port, boolean isPermanent, boolean returnAnyway) {
+        if (nodeMap.size() >= MAX_NODES)
+            return returnAnyway ? new Node(nodeId, ip, port, isPermanent) : null;
         if (nodeMap.containsKey(nodeId)) {
+            // Added meanwhile
             Node node = nodeMap.get(nodeId);
             if (!ip.equals(node.getIp()) || port != node.getPort())
                 return returnAnyway ? node : null;
@@ -67,105 +92,266 @@ public class NodeList {
             Node node = new Node(nodeId, ip, port, isPermanent);
             if (bucketSet.add(nodeId)) {
                 nodeMap.put(nodeId, node);
+                // Not seen yet, the first check expires it unless it answers meanwhile
+                arm(node, CLEAN_INTERVAL);
                 return node;
             }
+            // No room, it stands by for when one of the bucket's nodes goes. Until it is
+            // in, it is only as good as when we heard of it.
+            if (!isPermanent) {
+                node.setLastSeen();
+                node.setQuestionable(true);
+                bucketSet.addReplacement(node);
+            }
             return returnAnyway ? node : null;
         }
     }
 
     public synchronized void put(Node node){
-        if (bucketSet.add(node.getNodeId()))
-            nodeMap.put(node.getNodeId(), node);
+        if (bucketSet.add(node.getId())) {
+            nodeMap.put(node.getId(), node);
+            arm(node, CLEAN_INTERVAL);
+        }
     }
 
-    public synchronized Node remove(ByteBuffer nodeId){
+    /**
+     * Removes the node, a replacement standing by in its bucket takes its place
+     */
+    public synchronized Node remove(NodeId nodeId){
+        Node node = evict(nodeId);
+        if (node != null) {
+            Node standby = pollStandby(nodeId);
+            if (standby != null)
+                promote(standby);
+        }
+        return node;
+    }
+
+    /**
+     * Gives node's place to the most recent replacement standing by in its bucket.
+     * False if there is none fresh enough, node stays then.
+     */
+    public synchronized boolean replaceIfStandby(Node node){
+        if (nodeMap.get(node.getId()) != node || node.isPermanent())
+            return false;
+        Node standby = pollStandby(node.getId());
+        if (standby == null)
+            return false;
+        evict(node.getId());
+        promote(standby);
+        return true;
+    }
+
+    /**
+     * Removes the node and leaves its place empty
+     */
+    private synchronized Node evict(NodeId nodeId){
         Node node = nodeMap.get(nodeId);
         if (node != null && !node.isPermanent()){
             bucketSet.remove(nodeId);
+            disarm(node);
             return nodeMap.remove(nodeId);
         }
         return null;
     }
 
-    public synchronized List<Node> findClosest(ByteBuffer id, int max) {
-        List<ByteBuffer> ids = bucketSet.getClosest(id, 2*max);
-        List<Node> closest = new ArrayList<Node>(ids.size());
-        // Add non-questionable first
-        for (ByteBuffer key : ids) {
-            Node node = nodeMap.get(key);
-            if (node != null && !node.isQuestionable() && closest.size()<max) {
-                closest.add(node);
-            }
+    // The most recent replacement still fresh enough in the bucket where nodeId goes, taken out
+    private Node pollStandby(NodeId nodeId){
+        long now = System.currentTimeMillis();
+        Node node;
+        while ((node = bucketSet.pollReplacement(nodeId)) != null) {
+            if (node.getLastSeen() >= now - NODE_EXPIRE_TIME && !nodeMap.containsKey(node.getId()))
+                return node;
         }
-        // Add questionable if there is room
-        if (closest.size()>=max)
-            return closest;
-        for (ByteBuffer key : ids) {
-            Node node = nodeMap.get(key);
-            if (node != null && node.isQuestionable() && closest.size()<max) {
-                closest.add(node);
-            }
+        return null;
+    }
+
+    private void promote(Node node){
+        if (bucketSet.add(node.getId())) {
+            nodeMap.put(node.getId(), node);
+            // Checked like any new node, pinged unless it shows up meanwhile
+            arm(node, CLEAN_INTERVAL);
+            if (Logger.verbose)
+                Logger.log("Node replaced by " + node.getIp().toString());
         }
-        return closest;
     }
 
-    public synchronized void tick(DHT dht){
-        long now = System.currentTimeMillis();
+    private void arm(Node node, long delay){
+        node.setExpiryTimeout(timer.schedule(new NodeCheck(this, node), delay));
+    }
 
-        // clean list
-        if (lastCleanTime < now - CLEAN_INTERVAL) {
-            lastCleanTime = now;
+    private void disarm(Node node){
+        TimingWheel.Timeout timeout = node.getExpiryTimeout();
+        if (timeout != null)
+            timeout.cancel();
+        node.setExpiryTimeout(null);
+    }
 
-            List<ByteBuffer> removeNID = new LinkedList<>();
+    private void check(Node node){
+        DHT dht = dhtWeakReference.get();
+        if (dht == null)
+            return;
 
-            for (Node node : nodeMap.values()) {
-                if (node.getLastSeen() < now - NODE_EXPIRE_TIME) {
-                    removeNID.add(node.getNodeId());
-                } else if (node.getLastSeen() < now - NODE_PING_TIME || node.isQuestionable()) {
-                    dht.sendPing(node);
-                    if (Logger.verbose)
-                        Logger.log("Verifying node: Ping to " + node.getIp().toString());
-                }
-            }
+        boolean expired = false;
+        boolean ping = false;
+        synchronized (this){
+            if (nodeMap.get(node.getId()) != node)
+                return;
 
-            for (ByteBuffer key : removeNID) {
-                remove(key);
-                dht.addToBlackList(key);
+            long now = System.currentTimeMillis();
+            long lastSeen = node.getLastSeen();
+
+            if (lastSeen < now - NODE_EXPIRE_TIME) {
+                if (remove(node.getId()) != null) {
+                    expired = true;
+                } else {
+                    // Permanent, keep verifying it
+                    ping = true;
+                    arm(node, CLEAN_INTERVAL);
+                }
+            } else if (lastSeen < now - NODE_PING_TIME || node.isQuestionable()) {
+                ping = true;
+                if (Logger.verbose)
+                    Logger.log("Verifying node: Ping to " + node.getIp().toString());
+                arm(node, Math.min(CLEAN_INTERVAL, lastSeen + NODE_EXPIRE_TIME - now));
+            } else {
+                // Seen since this was armed, come back when it may need a ping
+                arm(node, lastSeen + NODE_PING_TIME - now);
             }
+        }
 
+        if (expired) {
+            dht.addToBlackList(node.getId());
             if (Logger.verbose)
-                Logger.log("Clean node list: " + removeNID.size() + " removed.");
+                Logger.log("Node expired: " + node.getIp().toString());
         }
+        if (ping)
+            dht.sendPing(node);
+    }
 
-        // explore
-        if (lastExploreTime < now - EXPLORE_INTERVAL && nodeMap.size()>0){
+    public List<Node> findClosest(NodeId id, int max) {
+        Node[] result = new Node[max];
+        int count = findClosest(id, result);
+        List<Node> closest = new ArrayList<Node>(count);
+        for (int i = 0; i < count; i++)
+            closest.add(result[i]);
+        return closest;
+    }
+
+    /**
+     * Fills result with nodes close to id and returns how many. Of the 2 * result.length
+     * closest, those that are not questionable go first, each part in order of distance.
+     */
+    public int findClosest(NodeId id, Node[] result) {
+        ClosestNodes closest = new ClosestNodes(nodeMap, id, 2 * result.length);
+        bucketSet.walkByDistance(id, closest);
+        return closest.fill(result);
+    }
+
+    public void tick(DHT dht){
+        long now = System.currentTimeMillis();
+
+        synchronized (this){
+            if (lastExploreTime >= now - EXPLORE_INTERVAL || nodeMap.isEmpty())
+                return;
             lastExploreTime = now;
+        }
+
+        // explore, over the buckets as they are now
+        if (nodeMap.size() <= EXPLORE_MAX_NODES) {
+            for (Bucket b : bucketSet.getBuckets()){
+                // update old and not full buckets
+                if (b.getLastChanged() < now - UPDATE_BUCKET_INTERVAL && (b.size() < 6 || b.getRangeBegin() != b.getRangeEnd())) {
+                    if (Logger.verbose)
+                        Logger.log("Explore in bucket " + b.getRangeBegin() + " - " + b.getRangeEnd());
+                    // check closest bucket
+                    if (b.getRangeBegin() != b.getRangeEnd()) {
+                        // explore my ID
+                        int depth = 2;
+                        if (nodeMap.size() < EXPLORE_AGGRESSIVE_MAX_NODES)
+                            depth = 3;
+                        dht.explore(myNodeID.toByteBuffer(), 8, depth);
+                        b.setLastChanged();
+                    } else {
+                        // generate random ID
+                        NodeId randomID = IDGenerator.generateRandomID(myNodeID, b.getRangeBegin());
+                        dht.explore(randomID.toByteBuffer(), 8, 1);
+                        b.setLastChanged();
+                    }
 
-            if (nodeMap.size() <= EXPLORE_MAX_NODES) {
-                for (Bucket b : bucketSet.getBuckets()){
-                    // update old and not full buckets
-                    if (b.getLastChanged() < now - UPDATE_BUCKET_INTERVAL && (b.size() < 6 || b.getRangeBegin() != b.getRangeEnd())) {
-                        if (Logger.verbose)
-                            Logger.log("Explore in bucket " + b.getRangeBegin() + " - " + b.getRangeEnd());
-                        // check closest bucket
-                        if (b.getRangeBegin() != b.getRangeEnd()) {
-                            // explore my ID
-                            int depth = 2;
-                            if (nodeMap.size() < EXPLORE_AGGRESSIVE_MAX_NODES)
-                                depth = 3;
-                            dht.explore(myNodeID, 8, depth);
-                            b.setLastChanged();
-                        } else {
-                            // generate random ID
-                            ByteBuffer randomID = IDGenerator.generateRandomID(myNodeID, b.getRangeBegin());
-                            dht.explore(randomID, 8, 1);
-                            b.setLastChanged();
-                        }
+                }
+            }
+        }
+    }
+
+    // The closest nodes as the bucket walk goes, in order, with whether they are questionable
+    private static class ClosestNodes implements BucketSet.BucketVisitor {
+
+        private final ConcurrentHashMap<NodeId, Node> nodeMap;
+        private final NodeId target;
+        private final Node[] nodes;
+        private final boolean[] questionable;
+        private int count = 0;
+
+        public ClosestNodes(ConcurrentHashMap<NodeId, Node> nodeMap, NodeId target, int max){
+            this.nodeMap = nodeMap;
+            this.target = target;
+            nodes = new Node[max];
+            questionable = new boolean[max];
+        }
 
+        @Override
+        public boolean visit(Bucket b) {
+            for (NodeId id : b.getEntries()) {
+                Node node = nodeMap.get(id);
+                if (node == null)
+                    continue;
+                // Insertion into the bounded sorted array, the farthest falls off the end
+                int i = count < nodes.length ? count++ : nodes.length;
+                while (i > 0 && NodeId.compareDistance(target, id, nodes[i - 1].getId()) < 0) {
+                    if (i < nodes.length) {
+                        nodes[i] = nodes[i - 1];
+                        questionable[i] = questionable[i - 1];
                     }
+                    i--;
+                }
+                if (i < nodes.length) {
+                    nodes[i] = node;
+                    questionable[i] = node.isQuestionable();
                 }
+            }
+            return count < nodes.length;
+        }
 
+        public int fill(Node[] result){
+            int filled = 0;
+            for (int i = 0; i < count && filled < result.length; i++) {
+                if (!questionable[i])
+                    result[filled++] = nodes[i];
             }
+            for (int i = 0; i < count && filled < result.length; i++) {
+                if (questionable[i])
+                    result[filled++] = nodes[i];
+            }
+            return filled;
+        }
+    }
+
+    private static class NodeCheck implements Runnable {
+
+        private WeakReference<NodeList> listWeakReference;
+        private Node node;
+
+        public NodeCheck(NodeList list, Node node){
+            listWeakReference = new WeakReference<NodeList>(list);
+            this.node = node;
+        }
+
+        @Override
+        public void run() {
+            NodeList list = listWeakReference.get();
+            if (list != null)
+                list.check(node);
         }
     }
 
@@ -185,15 +371,16 @@ public class NodeList {
 
             long now = System.currentTimeMillis();
 
-            List<ByteBuffer> removeNID = new LinkedList<>();
-            for (ByteBuffer id : b.getEntries()){
+            List<NodeId> removeNID = new LinkedList<>();
+            for (NodeId id : b.getEntries()){
                 Node node = list.get(id);
                 if (node == null || node.getLastSeen() < now - NODE_REPLACEABLE_TIME)
                     removeNID.add(id);
             }
 
-            for (ByteBuffer key : removeNID) {
-                list.remove(key);
+            // Not replaced, what is being added takes the room
+            for (NodeId key : removeNID) {
+                list.evict(key);
             }
 
             return !b.isFull();
@@ -0,0 +1,208 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+/**
+ * get_peers lookups for many info_hashes, run a few at a time so that together they never
+ * have more than a given number of queries in flight. Higher priorities go first.
+ * Made by DHT.getPeers(Collection, int, Listener).
+ */
+public class PeerBatch {
+
+    public static class Request {
+        private final ByteBuffer infoHash;
+        private final int priority;
+        private final int maxPeers;
+        private long order; // Same priority, first come first served
+
+        /**
+         * @param priority higher goes first
+         */
+        public Request(ByteBuffer infoHash, int priority, int maxPeers){
+            this.infoHash = infoHash;
+            this.priority = priority;
+            this.maxPeers = maxPeers;
+        }
+
+        public ByteBuffer getInfoHash() {
+            return infoHash;
+        }
+
+        public int getPriority() {
+            return priority;
+        }
+
+        public int getMaxPeers() {
+            return maxPeers;
+        }
+    }
+
+    public static interface Listener {
+        /**
+         * The lookup for infoHash ended with peers, batch tells how far along it is
+         */
+        public void lookupDone(PeerBatch batch, ByteBuffer infoHash, List<PeerInfo> peers);
+    }
+
+    private static final Comparator<Request> PRIORITY_ORDER = new Comparator<Request>() {
+        @Override
+        public int compare(Request r1, Request r2) {
+            if (r1.priority != r2.priority)
+                return r1.priority > r2.priority ? -1 : 1;
+            return Long.compare(r1.order, r2.order);
+        }
+    };
+
+    private final DHT dht;
+    private final int maxInFlightQueries;
+    private final int queriesPerLookup; // The most one lookup has in flight
+    private final Listener listener;
+    private final PriorityQueue<Request> waiting = new PriorityQueue<>(11, PRIORITY_ORDER);
+    private final Map<ByteBuffer, List<PeerInfo>> results = new HashMap<>();
+    private final CompletableFuture<Map<ByteBuffer, List<PeerInfo>>> future = new CompletableFuture<>();
+    private final int total;
+    private int running = 0;
+    private int done = 0;
+    private int peersFound = 0;
+    private boolean scheduling = false;
+
+    PeerBatch(DHT dht, Collection<Request> requests, int maxInFlightQueries, int queriesPerLookup, Listener listener){
+        if (maxInFlightQueries <= 0)
+            throw new IllegalArgumentException("Bad number of queries in flight " + maxInFlightQueries);
+        this.dht = dht;
+        this.maxInFlightQueries = maxInFlightQueries;
+        this.queriesPerLookup = queriesPerLookup;
+        this.listener = listener;
+        long order = 0;
+        for (Request request : requests) {
+            request.order = order++;
+            waiting.add(request);
+        }
+        total = waiting.size();
+    }
+
+    void start(){
+        if (total == 0)
+            future.complete(Collections.<ByteBuffer, List<PeerInfo>>emptyMap());
+        schedule();
+    }
+
+    /**
+     * Starts lookups while there is room for their queries
+     */
+    private void schedule(){
+        synchronized (this){
+            // Whoever schedules picks up the room we freed too
+            if (scheduling)
+                return;
+            scheduling = true;
+        }
+        while (true) {
+            final Request request;
+            synchronized (this){
+                // One lookup always runs, however small the budget
+                if (waiting.isEmpty() || running > 0 && (running + 1) * queriesPerLookup > maxInFlightQueries) {
+                    scheduling = false;
+                    return;
+                }
+                request = waiting.poll();
+                running++;
+            }
+            dht.getPeers(request.infoHash, false, request.maxPeers, null).whenComplete(
+                    new BiConsumer<List<PeerInfo>, Throwable>() {
+                        @Override
+                        public void accept(List<PeerInfo> peers, Throwable throwable) {
+                            lookupDone(request, peers == null ? Collections.<PeerInfo>emptyList() : peers);
+                        }
+                    });
+        }
+    }
+
+    private void lookupDone(Request request, List<PeerInfo> peers){
+        boolean all;
+        synchronized (this){
+            running--;
+            done++;
+            peersFound += peers.size();
+            results.put(request.infoHash, peers);
+            all = done == total;
+        }
+        if (listener != null)
+            listener.lookupDone(this, request.infoHash, peers);
+        if (all)
+            future.complete(getResults());
+        else
+            schedule();
+    }
+
+    /**
+     * Drops the lookups not started yet, the future completes once the running ones end
+     */
+    public void cancel(){
+        boolean all;
+        synchronized (this){
+            int dropped = waiting.size();
+            waiting.clear();
+            done += dropped;
+            all = dropped > 0 && running == 0;
+        }
+        if (all)
+            future.complete(getResults());
+    }
+
+    /**
+     * Completes with the peers found for every info_hash once all lookups ended
+     */
+    public CompletableFuture<Map<ByteBuffer, List<PeerInfo>>> getFuture() {
+        return future;
+    }
+
+    public synchronized Map<ByteBuffer, List<PeerInfo>> getResults(){
+        return new HashMap<>(results);
+    }
+
+    public int getTotal(){
+        return total;
+    }
+
+    /**
+     * Lookups ended, or dropped by cancel()
+     */
+    public synchronized int getDone(){
+        return done;
+    }
+
+    public synchronized int getRunning(){
+        return running;
+    }
+
+    public synchronized int getWaiting(){
+        return waiting.size();
+    }
+
+    public synchronized int getPeersFound(){
+        return peersFound;
+    }
+
+    /**
+     * Most queries the running lookups may have in flight right now
+     */
+    public synchronized int getQueriesInFlightBound(){
+        return running * queriesPerLookup;
+    }
+}
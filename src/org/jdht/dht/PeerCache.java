@@ -0,0 +1,163 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Peers found by recent get_peers lookups, by info_hash. Entries expire after a while,
+ * and the least recently used go first once the cache holds too many peers in all.
+ */
+public class PeerCache {
+
+    public static final long DEFAULT_TTL = 5*60*1000; // 5 min
+    public static final int DEFAULT_MAX_PEERS = 20000;
+
+    public static class Entry {
+        private final List<PeerInfo> peers;
+        private final long time;
+        private final boolean complete;
+        private TimingWheel.Timeout expiry = null;
+
+        private Entry(List<PeerInfo> peers, boolean complete){
+            this.peers = Collections.unmodifiableList(new ArrayList<>(peers));
+            this.time = System.currentTimeMillis();
+            this.complete = complete;
+        }
+
+        public List<PeerInfo> getPeers() {
+            return peers;
+        }
+
+        /**
+         * When the lookup that found the peers ended
+         */
+        public long getTime() {
+            return time;
+        }
+
+        /**
+         * False if the lookup was cut short once its callers had the peers they asked for,
+         * there may be more to find then
+         */
+        public boolean isComplete() {
+            return complete;
+        }
+    }
+
+    private final TimingWheel timer;
+    private final long ttl;
+    private final int maxPeers;
+    // In access order, least recently used first
+    private final LinkedHashMap<ByteBuffer, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int peerCount = 0;
+
+    /**
+     * Entries are expired by tasks scheduled on timer
+     */
+    public PeerCache(TimingWheel timer, long ttl, int maxPeers){
+        this.timer = timer;
+        this.ttl = ttl;
+        this.maxPeers = maxPeers;
+    }
+
+    public PeerCache(TimingWheel timer){
+        this(timer, DEFAULT_TTL, DEFAULT_MAX_PEERS);
+    }
+
+    public long getTtl() {
+        return ttl;
+    }
+
+    /**
+     * The peers a lookup for infoHash found, replacing what was there
+     */
+    public void put(ByteBuffer infoHash, List<PeerInfo> peers){
+        put(infoHash, peers, true);
+    }
+
+    /**
+     * Like put(), complete tells whether the lookup ran to the end
+     */
+    public void put(ByteBuffer infoHash, List<PeerInfo> peers, boolean complete){
+        // Too big to ever fit, or nothing worth keeping
+        if (peers.isEmpty() || peers.size() > maxPeers)
+            return;
+        final Entry entry = new Entry(peers, complete);
+        synchronized (this){
+            remove(entries.remove(infoHash));
+            entries.put(infoHash, entry);
+            peerCount += entry.peers.size();
+            evict();
+            if (!entries.containsKey(infoHash))
+                return;
+            final ByteBuffer key = infoHash;
+            entry.expiry = timer.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    expire(key, entry);
+                }
+            }, ttl);
+        }
+    }
+
+    /**
+     * Null if nothing was found lately
+     */
+    public synchronized Entry get(ByteBuffer infoHash){
+        return entries.get(infoHash);
+    }
+
+    public synchronized void invalidate(ByteBuffer infoHash){
+        remove(entries.remove(infoHash));
+    }
+
+    public synchronized int size(){
+        return entries.size();
+    }
+
+    public synchronized int getPeerCount(){
+        return peerCount;
+    }
+
+    public synchronized void clear(){
+        for (Entry entry : entries.values()) {
+            if (entry.expiry != null)
+                entry.expiry.cancel();
+        }
+        entries.clear();
+        peerCount = 0;
+    }
+
+    private synchronized void expire(ByteBuffer infoHash, Entry entry){
+        if (entries.get(infoHash) != entry)
+            return; // Replaced meanwhile
+        entries.remove(infoHash);
+        peerCount -= entry.peers.size();
+    }
+
+    private void evict(){
+        Iterator<Entry> it = entries.values().iterator();
+        while (peerCount > maxPeers && it.hasNext()) {
+            Entry entry = it.next();
+            it.remove();
+            remove(entry);
+        }
+    }
+
+    private void remove(Entry entry){
+        if (entry == null)
+            return;
+        peerCount -= entry.peers.size();
+        if (entry.expiry != null)
+            entry.expiry.cancel();
+    }
+}
@@ -5,6 +5,9 @@
 package org.jdht.dht;
 
 
+import org.jdht.bencode.Bencode;
+
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
 import java.util.Collections;
 import java.util.HashMap;
@@ -14,16 +17,18 @@ import java.util.Map;
 
 public class PeerList {
 
-    public static final long CLEAN_INTERVAL = 60*1000; // 60 sec
     public static final long PEER_EXPIRE_TIME = 15*60*1000; // 15 min
     private final static int MAX_INFOHASHES = 20;
     private final static int MAX_PEERS_PER_INFOHASH = 10;
 
     private Map<ByteBuffer, List<PeerInfo>> peerMap = new HashMap<>();
-    private long lastCleanTime = 0;
+    private final TimingWheel timer;
 
-    public PeerList(){
-        lastCleanTime = System.currentTimeMillis();
+    /**
+     * Peers are expired by tasks scheduled on timer
+     */
+    public PeerList(TimingWheel timer){
+        this.timer = timer;
     }
 
     public synchronized void announce(ByteBuffer infoHash, PeerInfo newPeer){
@@ -32,6 +37,7 @@ public class PeerList {
         List<PeerInfo> peers = peerMap.get(infoHash);
         if (peers == null){
             peers = new LinkedList<>();
+            infoHash = ByteBuffer.wrap(Bencode.getBytes(infoHash));
             peerMap.put(infoHash, peers);
         }
 
@@ -46,6 +52,28 @@ public class PeerList {
         }
 
         peers.add(newPeer);
+        timer.schedule(new PeerExpiry(this, infoHash, newPeer), PEER_EXPIRE_TIME);
+    }
+
+    private synchronized void expire(ByteBuffer infoHash, PeerInfo peer){
+        List<PeerInfo> peers = peerMap.get(infoHash);
+        if (peers == null || !peers.contains(peer))
+            return;
+
+        // Announced again meanwhile, check back when that expires
+        long remaining = peer.getLastSeen() + PEER_EXPIRE_TIME - System.currentTimeMillis();
+        if (remaining > 0) {
+            timer.schedule(new PeerExpiry(this, infoHash, peer), remaining);
+            return;
+        }
+
+        peers.remove(peer);
+        if (peers.size() == 0)
+            peerMap.remove(infoHash);
+
+        if (Logger.verbose)
+            Logger.log("Peer expired: " + peer.getIp().toString() + ". " +
+                    "Have " + peerMap.size() + " infohashes.");
     }
 
     public synchronized List<PeerInfo> getPeers(ByteBuffer infoHash){
@@ -62,36 +90,23 @@ public class PeerList {
         peerMap.clear();
     }
 
-    public synchronized void tick(){
-        long now = System.currentTimeMillis();
-        if (lastCleanTime < now - CLEAN_INTERVAL) {
-            lastCleanTime = now;
-
-            int totalPeers = 0;
-            int totalRemovedPeers = 0;
-            List<ByteBuffer> removeHashes = new LinkedList<>();
-            List<PeerInfo> removePeers = new LinkedList<>();
-            for (Map.Entry<ByteBuffer, List<PeerInfo>> entry : peerMap.entrySet()){
-                totalPeers += entry.getValue().size();
-                removePeers.clear();
-                for (PeerInfo peer : entry.getValue())
-                    if (peer.getLastSeen() < now - PEER_EXPIRE_TIME)
-                        removePeers.add(peer);
-
-                entry.getValue().removeAll(removePeers);
-                totalRemovedPeers += removePeers.size();
-                if (entry.getValue().size() == 0)
-                    removeHashes.add(entry.getKey());
+    private static class PeerExpiry implements Runnable {
 
-            }
-
-            for (ByteBuffer hash : removeHashes)
-                peerMap.remove(hash);
+        private WeakReference<PeerList> listWeakReference;
+        private ByteBuffer infoHash;
+        private PeerInfo peer;
 
-            if (Logger.verbose)
-                Logger.log("Clean peer list: " + totalRemovedPeers + " out of " + totalPeers + " removed. " +
-                        "Have " + peerMap.size() + " infohashes.");
+        public PeerExpiry(PeerList list, ByteBuffer infoHash, PeerInfo peer){
+            listWeakReference = new WeakReference<PeerList>(list);
+            this.infoHash = infoHash;
+            this.peer = peer;
+        }
 
+        @Override
+        public void run() {
+            PeerList list = listWeakReference.get();
+            if (list != null)
+                list.expire(infoHash, peer);
         }
     }
 
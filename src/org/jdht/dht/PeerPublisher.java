@@ -0,0 +1,169 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Streams the peers of a get_peers lookup, each one once, as far as the subscriber asked for.
+ * Every subscriber joins the lookup running for the info_hash, or starts one, and gets the
+ * peers found before it came too. Peers reach the subscriber on executor, never on the
+ * thread that handled the response. It completes once the lookup ends.
+ * Made by DHT.getPeersPublisher().
+ */
+public class PeerPublisher implements Flow.Publisher<PeerInfo> {
+
+    private final DHT dht;
+    private final ByteBuffer infoHash;
+    private final int maxPeers;
+    private final Executor executor;
+
+    PeerPublisher(DHT dht, ByteBuffer infoHash, int maxPeers, Executor executor){
+        this.dht = dht;
+        this.infoHash = infoHash;
+        this.maxPeers = maxPeers;
+        this.executor = executor;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super PeerInfo> subscriber) {
+        if (subscriber == null)
+            throw new NullPointerException();
+        final PeerSubscription subscription = new PeerSubscription(dht, infoHash, subscriber, executor);
+        subscriber.onSubscribe(subscription);
+        if (subscription.cancelled)
+            return; // Cancelled from onSubscribe, no lookup to join
+        dht.getPeers(infoHash, false, maxPeers, subscription).whenComplete(
+                new BiConsumer<List<PeerInfo>, Throwable>() {
+                    @Override
+                    public void accept(List<PeerInfo> peers, Throwable throwable) {
+                        subscription.complete();
+                    }
+                });
+        // A cancel() while joining may have left the lookup before we were in it
+        if (subscription.cancelled)
+            dht.unsubscribe(infoHash, subscription);
+    }
+
+    private static class PeerSubscription implements Flow.Subscription, DHTPeersReceiver, Runnable {
+
+        private final DHT dht;
+        private final ByteBuffer infoHash;
+        private final Flow.Subscriber<? super PeerInfo> subscriber;
+        private final Executor executor;
+        // Found but not asked for yet, at most what the lookup found
+        private final ConcurrentLinkedQueue<PeerInfo> peers = new ConcurrentLinkedQueue<>();
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger signals = new AtomicInteger(); // Non zero while a drain is scheduled
+        private volatile boolean lookupDone = false;
+        private volatile boolean cancelled = false;
+        private volatile Throwable error = null;
+        private boolean terminated = false; // Owned by the drain
+
+        public PeerSubscription(DHT dht, ByteBuffer infoHash, Flow.Subscriber<? super PeerInfo> subscriber,
+                                Executor executor){
+            this.dht = dht;
+            this.infoHash = infoHash;
+            this.subscriber = subscriber;
+            this.executor = executor;
+        }
+
+        @Override
+        public void gotPeersFromDHT(ByteBuffer infoHash, List<PeerInfo> found) {
+            if (cancelled)
+                return;
+            peers.addAll(found);
+            signal();
+        }
+
+        public void complete(){
+            lookupDone = true;
+            signal();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                error = new IllegalArgumentException("Requested " + n + " peers");
+            } else {
+                long current, next;
+                do {
+                    current = demand.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n; // Capped, as good as unbounded
+                } while (!demand.compareAndSet(current, next));
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            signal();
+        }
+
+        private void signal(){
+            if (signals.getAndIncrement() != 0)
+                return; // The running drain will see it
+            try {
+                executor.execute(this);
+            } catch (RejectedExecutionException e) {
+                // Shutting down, no one is left to deliver to
+                cancelled = true;
+                peers.clear();
+                signals.set(0);
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = signals.get();
+            while (true) {
+                drain();
+                missed = signals.addAndGet(-missed);
+                if (missed == 0)
+                    return;
+            }
+        }
+
+        private void drain(){
+            if (terminated)
+                return;
+            if (cancelled) {
+                terminate();
+                return;
+            }
+            if (error != null) {
+                terminate();
+                subscriber.onError(error);
+                return;
+            }
+            PeerInfo peer;
+            while (demand.get() > 0 && !cancelled && (peer = peers.poll()) != null) {
+                demand.decrementAndGet();
+                subscriber.onNext(peer);
+            }
+            if (lookupDone && peers.isEmpty() && !cancelled) {
+                terminate();
+                subscriber.onComplete();
+            }
+        }
+
+        private void terminate(){
+            terminated = true;
+            peers.clear();
+            // Leaves the lookup, it needs not go on for us
+            dht.unsubscribe(infoHash, this);
+        }
+    }
+}
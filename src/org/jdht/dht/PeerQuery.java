@@ -4,83 +4,185 @@
 
 package org.jdht.dht;
 
+import org.jdht.bencode.Bencode;
+
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 
+/**
+ * A get_peers lookup for one info_hash, shared by every caller asking for it meanwhile.
+ * Each subscriber is told of the peers found, including those found before it came,
+ * and its future completes once it has its maxPeers or the lookup ends.
+ */
 public class PeerQuery {
 
     private static final int MAX_ANNOUNCE_NODES = 8;
-    private static final int MAX_QUERY_TIME = 60*1000; // 60 sec
+    static final int MAX_QUERY_TIME = 60*1000; // 60 sec
+
+    private static class Subscriber {
+        public final int maxPeers;
+        public final DHTPeersReceiver receiver; // may be null
+        public final CompletableFuture<List<PeerInfo>> future = new CompletableFuture<>();
 
-    private Set<ByteBuffer> tryingNodes;
-    private Map<ByteBuffer, Node> nodesTried;
-    private Map<ByteBuffer, Object> tokens;
+        public Subscriber(int maxPeers, DHTPeersReceiver receiver){
+            this.maxPeers = maxPeers;
+            this.receiver = receiver;
+        }
+    }
+
+    private Map<NodeId, Node> nodesTried;
+    private Map<NodeId, ByteBuffer> tokens;
     private Set<PeerInfo> peers;
     private long startedTime;
-    private int maxPeers;
-    private boolean announce;
+    private boolean announce = false;
+    private boolean completed = false;
     private ByteBuffer infoHash;
-    private int originalDepth;
+    private Lookup lookup;
+    private final List<Subscriber> subscribers = new ArrayList<>();
 
-    public PeerQuery(ByteBuffer infoHash, int maxPeers, boolean announce, int originalDepth){
+    public PeerQuery(ByteBuffer infoHash){
         this.infoHash = infoHash;
-        this.maxPeers = maxPeers;
-        this.announce = announce;
-        this.originalDepth = originalDepth;
         startedTime = System.currentTimeMillis();
         nodesTried = new HashMap<>();
         tokens = new HashMap<>();
         peers = new HashSet<>();
-        tryingNodes = new HashSet<>();
     }
 
-    public synchronized void addTriedNode(Node node, Object token){
-        tryingNodes.remove(node.getNodeId());
-        nodesTried.put(node.getNodeId(), node);
-        tokens.put(node.getNodeId(), token);
+    /**
+     * Joins the lookup. receiver (may be null) gets the peers found so far right away,
+     * then the new ones as they come. The future completes with every peer found once
+     * there are maxPeers of them or the lookup ends.
+     * Returns null if the lookup already ended, a new one is needed then.
+     */
+    public CompletableFuture<List<PeerInfo>> subscribe(int maxPeers, boolean announce, DHTPeersReceiver receiver){
+        Subscriber subscriber = new Subscriber(maxPeers, receiver);
+        List<PeerInfo> found;
+        boolean satisfied;
+        synchronized (this){
+            if (completed)
+                return null;
+            if (announce)
+                this.announce = true;
+            found = new ArrayList<>(peers);
+            satisfied = found.size() >= maxPeers;
+            if (!satisfied)
+                subscribers.add(subscriber);
+        }
+        if (receiver != null && found.size() > 0)
+            receiver.gotPeersFromDHT(infoHash, found);
+        if (satisfied)
+            subscriber.future.complete(found);
+        return subscriber.future;
+    }
+
+    /**
+     * Leaves the lookup, receiver's future completes with the peers found so far.
+     * With no one left waiting, shouldContinue() turns false unless announcing.
+     */
+    public void unsubscribe(DHTPeersReceiver receiver){
+        List<PeerInfo> found;
+        Subscriber left = null;
+        synchronized (this){
+            Iterator<Subscriber> it = subscribers.iterator();
+            while (it.hasNext()) {
+                Subscriber subscriber = it.next();
+                if (subscriber.receiver == receiver) {
+                    left = subscriber;
+                    it.remove();
+                    break;
+                }
+            }
+            if (left == null)
+                return;
+            found = new ArrayList<>(peers);
+        }
+        left.future.complete(found);
+    }
+
+    public synchronized void setLookup(Lookup lookup){
+        this.lookup = lookup;
+    }
+
+    /**
+     * The lookup finding the nodes to ask
+     */
+    public synchronized Lookup getLookup(){
+        return lookup;
     }
 
-    public synchronized boolean isAlreadyTried(ByteBuffer nodeId){
-        boolean ret = nodesTried.get(nodeId) != null || tryingNodes.contains(nodeId);
-        if (!ret)
-            tryingNodes.add(nodeId);
-        return ret;
+    public synchronized void addTriedNode(Node node, ByteBuffer token){
+        nodesTried.put(node.getId(), node);
+        tokens.put(node.getId(), token == null ? null : ByteBuffer.wrap(Bencode.getBytes(token)));
     }
 
     public synchronized int getTriedNodesCount(){
-        return nodesTried.size() + tryingNodes.size();
+        return nodesTried.size();
     }
 
-    public synchronized List<PeerInfo> addPeers(List<PeerInfo> newPeers){
+    /**
+     * Tells the subscribers of the peers not known yet, and returns them
+     */
+    public List<PeerInfo> addPeers(List<PeerInfo> newPeers){
         List<PeerInfo> result = new LinkedList<>();
-        for (PeerInfo peer : newPeers){
-            if (!peers.contains(peer))
-                result.add(peer);
+        Subscriber[] toNotify;
+        List<Subscriber> satisfied = null;
+        List<PeerInfo> found = null;
+        synchronized (this){
+            for (PeerInfo peer : newPeers){
+                if (!peers.contains(peer))
+                    result.add(peer);
+            }
+            if (result.isEmpty() || completed)
+                return result;
+            peers.addAll(result);
+            toNotify = subscribers.toArray(new Subscriber[subscribers.size()]);
+            Iterator<Subscriber> it = subscribers.iterator();
+            while (it.hasNext()) {
+                Subscriber subscriber = it.next();
+                if (peers.size() >= subscriber.maxPeers) {
+                    if (satisfied == null) {
+                        satisfied = new ArrayList<>();
+                        found = new ArrayList<>(peers);
+                    }
+                    satisfied.add(subscriber);
+                    it.remove();
+                }
+            }
+        }
+        // Outside the lock, receivers and dependent stages run right here
+        for (Subscriber subscriber : toNotify) {
+            if (subscriber.receiver != null)
+                subscriber.receiver.gotPeersFromDHT(infoHash, result);
+        }
+        if (satisfied != null) {
+            for (Subscriber subscriber : satisfied)
+                subscriber.future.complete(found);
         }
-        peers.addAll(result);
         return result;
     }
 
-    public synchronized Map<Node, Object> getAnnounceNodes(){
+    public synchronized Map<Node, ByteBuffer> getAnnounceNodes(){
         if (!announce)
             return null;
 
         announce = false; // Don't announce twice
 
         // Find closest nodes
-        List<ByteBuffer> list = new LinkedList<>();
-        list.addAll(nodesTried.keySet());
-        Collections.sort(list, new BucketSet.XORComparator(infoHash));
+        List<NodeId> list = new ArrayList<>(nodesTried.keySet());
+        Collections.sort(list, new NodeId.DistanceComparator(NodeId.read(infoHash)));
 
-        Map<Node, Object> nodeList = new LinkedHashMap<>(MAX_ANNOUNCE_NODES);
-        for (ByteBuffer nid : list){
+        Map<Node, ByteBuffer> nodeList = new LinkedHashMap<>(MAX_ANNOUNCE_NODES);
+        for (NodeId nid : list){
             if (nodeList.size() < MAX_ANNOUNCE_NODES){
                 nodeList.put(nodesTried.get(nid), tokens.get(nid));
             } else {
@@ -92,20 +194,51 @@ public class PeerQuery {
 
     }
 
+    public synchronized List<PeerInfo> getPeers(){
+        return new ArrayList<>(peers);
+    }
+
+    /**
+     * Ends the query, the subscribers left get the peers found so far. Returns the nodes
+     * to announce to as getAnnounceNodes() does, decided along with the end, so a subscriber
+     * announcing either gets in before or has to start a new query. Null if already ended.
+     */
+    public Map<Node, ByteBuffer> complete(){
+        List<PeerInfo> result;
+        Subscriber[] left;
+        Map<Node, ByteBuffer> announceNodes;
+        synchronized (this){
+            if (completed)
+                return null;
+            completed = true;
+            result = new ArrayList<>(peers);
+            left = subscribers.toArray(new Subscriber[subscribers.size()]);
+            subscribers.clear();
+            announceNodes = getAnnounceNodes();
+        }
+        // Outside the lock, dependent stages run right here
+        for (Subscriber subscriber : left)
+            subscriber.future.complete(result);
+        return announceNodes;
+    }
+
+    /**
+     * False once out of time or every subscriber has its peers. An announce
+     * still needs the lookup to reach the closest nodes.
+     */
     public synchronized boolean shouldContinue(){
-        long now = System.currentTimeMillis();
-        return startedTime > now - MAX_QUERY_TIME && peers.size() < maxPeers;
+        return !isOutOfTime() && (announce || !subscribers.isEmpty());
+    }
+
+    public synchronized boolean isOutOfTime(){
+        return startedTime <= System.currentTimeMillis() - MAX_QUERY_TIME;
     }
 
     public ByteBuffer getInfoHash() {
         return infoHash;
     }
 
-    public boolean isAnnounce() {
+    public synchronized boolean isAnnounce() {
         return announce;
     }
-
-    public int getOriginalDepth() {
-        return originalDepth;
-    }
 }
@@ -0,0 +1,423 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timing wheel. Scheduling and cancelling are O(1) and lock free,
+ * a single worker thread runs the tasks once their deadline passes.
+ * The wheel only holds what is due within one rotation. Later deadlines wait in an
+ * overflow heap, ordered by deadline, and move to the wheel once they come in range,
+ * so minutes long timeouts are touched twice rather than once per rotation.
+ * The worker parks until the next slot that holds something, or while nothing is scheduled.
+ * Tasks run on the worker thread, where they must be short and not block, unless an
+ * executor is set to hand them to. The DHT hands them to KRPC's handlers.
+ */
+public class TimingWheel implements Runnable {
+
+    public static final long DEFAULT_TICK = 10; // 10 ms
+    public static final int DEFAULT_WHEEL_SIZE = 1024; // About 10 s at the default tick
+    private static final int MIN_OVERFLOW_PURGE = 64;
+
+    private static final int STATE_PENDING = 0;
+    private static final int STATE_CANCELLED = 1;
+    private static final int STATE_EXPIRED = 2;
+
+    public static class Timeout {
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimingWheel wheel;
+        private final Runnable task;
+        private final long deadline; // ticks since the wheel started
+        private final int generation; // Of the wheel when scheduled, a stop() drops older ones
+        private volatile int state = STATE_PENDING;
+
+        // Owned by the worker thread
+        private boolean overflow; // In the overflow heap rather than a bucket
+        private boolean countedOut; // Cancelled in the overflow heap, and no longer pending
+        private Bucket bucket;
+        private Timeout next;
+        private Timeout prev;
+
+        private Timeout(TimingWheel wheel, Runnable task, long deadline, int generation){
+            this.wheel = wheel;
+            this.task = task;
+            this.deadline = deadline;
+            this.generation = generation;
+        }
+
+        /**
+         * Returns false if the task already ran or was cancelled
+         */
+        public boolean cancel(){
+            if (!STATE.compareAndSet(this, STATE_PENDING, STATE_CANCELLED))
+                return false;
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled(){
+            return state == STATE_CANCELLED;
+        }
+
+        public boolean isExpired(){
+            return state == STATE_EXPIRED;
+        }
+    }
+
+    private static class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        public void add(Timeout timeout){
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        public void remove(Timeout timeout){
+            if (timeout.prev != null)
+                timeout.prev.next = timeout.next;
+            else
+                head = timeout.next;
+            if (timeout.next != null)
+                timeout.next.prev = timeout.prev;
+            else
+                tail = timeout.prev;
+            timeout.prev = timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+
+    private static final Comparator<Timeout> DEADLINE_ORDER = new Comparator<Timeout>() {
+        @Override
+        public int compare(Timeout t1, Timeout t2) {
+            return Long.compare(t1.deadline, t2.deadline);
+        }
+    };
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final ConcurrentLinkedQueue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+    private volatile long startTime;
+    private volatile Thread thread = null;
+    private Thread stopping = null; // The last worker stopped, may still be dropping what it had
+    private volatile int generation = 0; // Bumped by stop()
+    private volatile Executor executor = null;
+    // The tick the worker parks until, a schedule due earlier wakes it
+    private volatile long wakeTick = Long.MAX_VALUE;
+
+    // Owned by the worker thread
+    private final PriorityQueue<Timeout> overflow = new PriorityQueue<>(64, DEADLINE_ORDER);
+    private int overflowCancelled = 0; // Cancelled but still in the heap
+    private int wheelCount = 0; // In the buckets
+
+    public TimingWheel(){
+        this(DEFAULT_TICK, DEFAULT_WHEEL_SIZE);
+    }
+
+    /**
+     * @param tickMillis resolution of the wheel
+     * @param wheelSize number of buckets, rounded up to a power of two
+     */
+    public TimingWheel(long tickMillis, int wheelSize){
+        if (tickMillis <= 0 || wheelSize <= 0)
+            throw new IllegalArgumentException("Bad tick or wheel size");
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        tickNanos = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+        startTime = System.nanoTime();
+    }
+
+    public synchronized void start(){
+        if (thread != null)
+            return;
+        final Thread previous = stopping;
+        final int generation = this.generation;
+        stopping = null;
+        thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                // The buckets and counters are the old worker's until it is done with them
+                if (previous != null)
+                    join(previous);
+                work(generation);
+            }
+        });
+        thread.setName("DHT_Timer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Stops the worker, tasks that did not run yet are dropped. Returns once it is gone,
+     * unless called by one of its tasks.
+     */
+    public void stop(){
+        Thread worker;
+        synchronized (this){
+            worker = thread;
+            if (worker == null)
+                return;
+            thread = null;
+            stopping = worker;
+            generation++;
+            worker.interrupt();
+        }
+        // Not holding the lock, a task of the worker may still need it
+        if (worker != Thread.currentThread())
+            join(worker);
+    }
+
+    private static void join(Thread worker){
+        boolean interrupted = false;
+        while (worker.isAlive()) {
+            try {
+                worker.join();
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    /**
+     * Runs task once delayMillis passed, unless cancelled before that
+     */
+    public Timeout schedule(Runnable task, long delayMillis){
+        long delay = Math.max(0, TimeUnit.MILLISECONDS.toNanos(delayMillis));
+        // Round up, a task never runs early
+        long deadline = (System.nanoTime() - startTime + delay + tickNanos - 1) / tickNanos;
+        Timeout timeout = new Timeout(this, task, deadline, generation);
+        scheduled.add(timeout);
+        pending.incrementAndGet();
+        if (deadline < wakeTick) {
+            Thread worker = thread;
+            if (worker != null)
+                LockSupport.unpark(worker);
+        }
+        return timeout;
+    }
+
+    /**
+     * Expired tasks are handed to executor, the worker only keeps time. Null runs them on the worker.
+     */
+    public void setExecutor(Executor executor){
+        this.executor = executor;
+    }
+
+    public int size(){
+        return pending.get();
+    }
+
+    @Override
+    public void run() {
+        work(generation);
+    }
+
+    private void work(int generation){
+        Thread current = Thread.currentThread();
+        long tick = currentTick();
+
+        while (!current.isInterrupted()) {
+            removeCancelled();
+            addScheduled(tick, generation);
+
+            long now = currentTick();
+            while (tick <= now) {
+                if (wheelCount == 0) {
+                    // Nothing in the buckets, skip to the first deadline that may be due
+                    Timeout first = overflow.peek();
+                    tick = Math.max(tick, Math.min(now, first == null ? now : first.deadline));
+                }
+                transferOverflow(tick);
+                expire(wheel[(int) (tick & mask)], tick);
+                tick++;
+            }
+
+            long next = nextDeadline(tick);
+            wakeTick = next;
+            // A schedule that saw the old wakeTick did not wake us, look once more
+            if (!scheduled.isEmpty() || !cancelled.isEmpty()) {
+                wakeTick = Long.MIN_VALUE;
+                continue;
+            }
+            if (next == Long.MAX_VALUE) {
+                LockSupport.park(this);
+            } else {
+                long wait = startTime + next * tickNanos - System.nanoTime();
+                if (wait > 0)
+                    LockSupport.parkNanos(this, wait);
+            }
+            wakeTick = Long.MIN_VALUE;
+        }
+
+        // Drop whatever is left, a restarted wheel begins empty. What a task of ours scheduled
+        // after restarting the wheel is the next worker's.
+        wakeTick = Long.MAX_VALUE;
+        Iterator<Timeout> it = scheduled.iterator();
+        while (it.hasNext()) {
+            if (it.next().generation == generation) {
+                it.remove();
+                pending.decrementAndGet();
+            }
+        }
+        Timeout timeout;
+        cancelled.clear();
+        for (Bucket bucket : wheel) {
+            while (bucket.head != null) {
+                bucket.remove(bucket.head);
+                pending.decrementAndGet();
+            }
+        }
+        wheelCount = 0;
+        while ((timeout = overflow.poll()) != null) {
+            if (!timeout.countedOut)
+                pending.decrementAndGet();
+            timeout.overflow = false;
+        }
+        overflowCancelled = 0;
+    }
+
+    private long currentTick(){
+        return (System.nanoTime() - startTime) / tickNanos;
+    }
+
+    // The first tick from tick on with something due, Long.MAX_VALUE if nothing is scheduled
+    private long nextDeadline(long tick){
+        if (wheelCount > 0) {
+            for (long t = tick; t < tick + wheel.length; t++) {
+                if (wheel[(int) (t & mask)].head != null)
+                    return t;
+            }
+        }
+        Timeout first = overflow.peek();
+        return first == null ? Long.MAX_VALUE : first.deadline;
+    }
+
+    private void addScheduled(long tick, int generation){
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state != STATE_PENDING || timeout.generation != generation) {
+                // Cancelled before it reached the wheel, or scheduled as the wheel was stopped
+                pending.decrementAndGet();
+                continue;
+            }
+            place(timeout, tick);
+        }
+    }
+
+    private void place(Timeout timeout, long tick){
+        long deadline = Math.max(timeout.deadline, tick);
+        if (deadline - tick >= wheel.length) {
+            timeout.overflow = true;
+            overflow.add(timeout);
+        } else {
+            wheel[(int) (deadline & mask)].add(timeout);
+            wheelCount++;
+        }
+    }
+
+    // Moves what became due within one rotation of tick from the overflow to the wheel
+    private void transferOverflow(long tick){
+        Timeout timeout;
+        while ((timeout = overflow.peek()) != null && timeout.deadline - tick < wheel.length) {
+            overflow.poll();
+            timeout.overflow = false;
+            if (timeout.state != STATE_PENDING) {
+                dropCancelled(timeout);
+                continue;
+            }
+            place(timeout, tick);
+        }
+    }
+
+    private void removeCancelled(){
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+                wheelCount--;
+                pending.decrementAndGet();
+            } else if (timeout.overflow) {
+                // Left in the heap, removing from the middle of it is O(n)
+                timeout.countedOut = true;
+                overflowCancelled++;
+                pending.decrementAndGet();
+            }
+            // Otherwise not placed yet, addScheduled will drop it
+        }
+        if (overflowCancelled > MIN_OVERFLOW_PURGE && overflowCancelled > overflow.size() / 2) {
+            Iterator<Timeout> it = overflow.iterator();
+            while (it.hasNext()) {
+                Timeout t = it.next();
+                if (t.state != STATE_PENDING) {
+                    t.overflow = false;
+                    it.remove();
+                    dropCancelled(t);
+                }
+            }
+        }
+    }
+
+    // A cancelled timeout leaves the overflow heap, whether or not its cancel was seen yet
+    private void dropCancelled(Timeout timeout){
+        if (timeout.countedOut)
+            overflowCancelled--;
+        else
+            pending.decrementAndGet(); // Its turn in removeCancelled finds it nowhere
+    }
+
+    private void expire(Bucket bucket, long tick){
+        Timeout timeout = bucket.head;
+        while (timeout != null) {
+            Timeout next = timeout.next;
+            bucket.remove(timeout);
+            wheelCount--;
+            pending.decrementAndGet();
+            if (Timeout.STATE.compareAndSet(timeout, STATE_PENDING, STATE_EXPIRED)) {
+                Executor executor = this.executor;
+                try {
+                    if (executor != null)
+                        executor.execute(timeout.task);
+                    else
+                        timeout.task.run();
+                } catch (RejectedExecutionException e) {
+                    // Shutting down, dropped like on a stopped wheel
+                } catch (Throwable t) {
+                    t.printStackTrace();
+                }
+            }
+            timeout = next;
+        }
+    }
+}
@@ -12,10 +12,10 @@ public class Token {
     private final static int TOKEN_LENGTH = 8;
 
     private ByteBuffer token;
-    private ByteBuffer nodeID;
+    private NodeId nodeID;
     private long generatedTime;
 
-    public Token(ByteBuffer nodeID){
+    public Token(NodeId nodeID){
         byte[] tokenBA = new byte[TOKEN_LENGTH];
         new Random().nextBytes(tokenBA);
         token = ByteBuffer.wrap(tokenBA);
@@ -27,7 +27,7 @@ public class Token {
         return token;
     }
 
-    public ByteBuffer getNodeID() {
+    public NodeId getNodeID() {
         return nodeID;
     }
 
@@ -0,0 +1,38 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht;
+
+
+import org.jdht.bencode.BencodeDictionaryTest;
+import org.jdht.bencode.BencodeTest;
+import org.jdht.dht.BoundedQueueTest;
+import org.jdht.dht.BucketSetTest;
+import org.jdht.dht.LatencyTrackerTest;
+import org.jdht.dht.Logger;
+import org.jdht.dht.LookupTest;
+import org.jdht.dht.NodeIdTest;
+import org.jdht.dht.NodeListTest;
+import org.jdht.dht.TimingWheelTest;
+
+/**
+ * Runs every test, each throws an AssertionError on the first thing wrong.
+ * Run with: java org.jdht.AllTests
+ */
+public class AllTests {
+
+    public static void main(String[] args) throws Exception {
+        Logger.verbose = false;
+        BencodeTest.main(args);
+        BencodeDictionaryTest.main(args);
+        NodeIdTest.main(args);
+        BucketSetTest.main(args);
+        NodeListTest.main(args);
+        LookupTest.main(args);
+        BoundedQueueTest.main(args);
+        LatencyTrackerTest.main(args);
+        TimingWheelTest.main(args);
+        System.out.println("All tests passed");
+    }
+}
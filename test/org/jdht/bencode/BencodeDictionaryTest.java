@@ -0,0 +1,53 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.bencode;
+
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Reads a get_peers query in the middle of a larger buffer through the lazy dictionary view,
+ * and checks that malformed dictionaries are refused.
+ */
+public class BencodeDictionaryTest {
+
+    private final static String QUERY =
+            "d1:ad2:id20:abcdefghij01234567894:porti6881e6:valuesl6:aaaaaa6:bbbbbbee1:q9:get_peers1:t2:aa1:y1:qe";
+    private final static String[] MALFORMED = {"d1:a", "di1ei2ee", "d1:ai1x2ee", "l1:ae", "d1:a5:abce"};
+
+    public static void main(String[] args) throws IOException {
+        ByteBuffer buffer = ByteBuffer.wrap(("XX" + QUERY + "YY").getBytes());
+        buffer.position(2);
+        BencodeDictionary dictionary = new BencodeDictionary(buffer);
+        check(dictionary.size() == 4, "size");
+        check(dictionary.matches("y", "q") && !dictionary.matches("y", "r") && !dictionary.matches("a", "q"), "matches");
+        check(Bencode.getString(dictionary.getByteString("q")).equals("get_peers"), "q");
+        check(Bencode.getString(dictionary.getByteString("t")).equals("aa"), "t");
+
+        BencodeDictionary arguments = dictionary.getDictionary("a");
+        check(Bencode.getString(arguments.getByteString("id")).equals("abcdefghij0123456789"), "id");
+        check(arguments.getInteger("port") == 6881L, "port");
+        check(arguments.getList("values").size() == 2, "values");
+        // The wrong type or missing reads as null
+        check(arguments.getByteString("port") == null && arguments.getInteger("id") == null, "types");
+        check(dictionary.getDictionary("q") == null && arguments.getByteString("none") == null, "missing");
+
+        for (String malformed : MALFORMED) {
+            try {
+                new BencodeDictionary(ByteBuffer.wrap(malformed.getBytes()));
+                throw new AssertionError("accepted " + malformed);
+            } catch (IOException e) {
+                // Refused, as it should
+            }
+        }
+        System.out.println("BencodeDictionaryTest: OK");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
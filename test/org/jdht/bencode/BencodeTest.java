@@ -0,0 +1,72 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.bencode;
+
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Decodes in place and from a stream, encodes back and compares, and checks that
+ * malformed or too deeply nested input is refused.
+ */
+public class BencodeTest {
+
+    private final static String[] WELL_FORMED = {
+            "d1:ad2:id20:abcdefghij0123456789e1:q4:ping1:t2:aa1:y1:qe", "i-42e", "i0e",
+            "i-9223372036854775808e", "i9223372036854775807e", "l4:spami42ee", "d3:bar4:spam3:fooi42ee", "0:"};
+    private final static String[] MALFORMED = {"i12", "ie", "i1x2e", "5:abc", "d1:a", "l", "x",
+            "i99999999999999999999e", "99999999999:a"};
+    private final static int DEEP = 10000;
+
+    public static void main(String[] args) throws IOException {
+        for (String encoded : WELL_FORMED) {
+            byte[] padded = ("XX" + encoded + "YY").getBytes();
+            Object inPlace = new Bencode(padded, 2, encoded.length()).getRootElement();
+            Object streamed = new Bencode(new BufferedInputStream(
+                    new ByteArrayInputStream(encoded.getBytes()))).getRootElement();
+            check(inPlace.equals(streamed), "in place and streamed differ, " + encoded);
+            check(Bencode.getBencodeSize(inPlace) == encoded.length(), "size of " + encoded);
+
+            Bencode bencode = new Bencode();
+            bencode.setRootElement(inPlace);
+            ByteArrayOutputStream printed = new ByteArrayOutputStream();
+            bencode.print(printed);
+            check(printed.toString().equals(encoded), encoded + " printed as " + printed);
+
+            ByteBuffer heap = ByteBuffer.allocate(encoded.length());
+            Bencode.encode(inPlace, heap);
+            check(new String(heap.array()).equals(encoded), "encode " + encoded);
+            ByteBuffer direct = ByteBuffer.allocateDirect(encoded.length());
+            Bencode.encode(inPlace, direct);
+            check(direct.position() == encoded.length(), "encode direct " + encoded);
+        }
+
+        for (String malformed : MALFORMED)
+            refused(malformed);
+        StringBuilder deep = new StringBuilder();
+        for (int i = 0; i < DEEP; i++)
+            deep.append('l');
+        refused(deep.toString());
+        System.out.println("BencodeTest: OK");
+    }
+
+    private static void refused(String malformed){
+        try {
+            new Bencode(malformed.getBytes(), 0, malformed.length());
+        } catch (IOException e) {
+            return;
+        }
+        throw new AssertionError("accepted " + (malformed.length() > 20 ? malformed.substring(0, 20) + "..." : malformed));
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
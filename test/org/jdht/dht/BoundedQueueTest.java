@@ -0,0 +1,91 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks capacity and order on one thread, then that every element offered by several
+ * producers is polled exactly once by several consumers.
+ */
+public class BoundedQueueTest {
+
+    private final static int PRODUCERS = 4;
+    private final static int CONSUMERS = 4;
+    private final static long PER_PRODUCER = 20000;
+
+    public static void main(String[] args) throws InterruptedException {
+        singleThread();
+        concurrent();
+    }
+
+    private static void singleThread(){
+        BoundedQueue<Integer> queue = new BoundedQueue<>(100);
+        check(queue.capacity() == 128, "capacity rounded up");
+        check(queue.isEmpty() && queue.poll() == null, "empty");
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < queue.capacity(); i++)
+                check(queue.offer(i), "offer");
+            check(!queue.offer(-1), "offered when full");
+            check(queue.size() == queue.capacity(), "size");
+            for (int i = 0; i < queue.capacity(); i++)
+                check(queue.poll() == i, "order");
+            check(queue.poll() == null && queue.isEmpty(), "empty again");
+        }
+        System.out.println("BoundedQueueTest: single thread OK");
+    }
+
+    private static void concurrent() throws InterruptedException {
+        final BoundedQueue<Long> queue = new BoundedQueue<>(100);
+        final long total = PRODUCERS * PER_PRODUCER;
+        final AtomicLong sum = new AtomicLong();
+        final AtomicLong count = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < PRODUCERS; p++) {
+            final long base = p * PER_PRODUCER;
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (long i = 0; i < PER_PRODUCER; i++) {
+                        while (!queue.offer(base + i))
+                            Thread.yield();
+                    }
+                }
+            }));
+        }
+        for (int c = 0; c < CONSUMERS; c++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (count.get() < total) {
+                        Long value = queue.poll();
+                        if (value == null) {
+                            Thread.yield();
+                            continue;
+                        }
+                        sum.addAndGet(value);
+                        count.incrementAndGet();
+                    }
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        check(count.get() == total, count + " polled of " + total);
+        check(sum.get() == total * (total - 1) / 2, "elements lost or doubled");
+        System.out.println("BoundedQueueTest: " + total + " elements through " + PRODUCERS + " producers and " +
+                CONSUMERS + " consumers OK");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
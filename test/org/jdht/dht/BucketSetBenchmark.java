@@ -0,0 +1,74 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.Iterator;
+import java.util.Random;
+
+/**
+ * Times BucketSet.add() and getClosest() while the table fills up, one range at a time
+ * from the farthest, until every range has its own bucket. Both should stay flat.
+ * Not part of AllTests, run with: java org.jdht.dht.BucketSetBenchmark [operations per step]
+ */
+public class BucketSetBenchmark {
+
+    private final static int STEP = 16; // Ranges filled between measurements
+    private final static int WARMUP_ROUNDS = 3;
+
+    public static void main(String[] args) {
+        int operations = args.length > 0 ? Integer.parseInt(args[0]) : 200000;
+        for (int i = 0; i < WARMUP_ROUNDS; i++)
+            run(operations / 10, false);
+        run(operations, true);
+    }
+
+    private static void run(int operations, boolean print){
+        Random random = new Random(1);
+        NodeId myID = NodeId.random();
+        BucketSet buckets = new BucketSet(myID, new BucketSet.Trimmer() {
+            @Override
+            public boolean trim(Bucket b) {
+                // Makes room like a stale node was dropped, so full buckets take the add too
+                Iterator<NodeId> it = b.getEntries().iterator();
+                return it.hasNext() && b.remove(it.next());
+            }
+        });
+
+        // Ids ahead of time, so the timings are of the table only
+        NodeId[] ids = new NodeId[operations];
+        long sink = 0;
+        if (print)
+            System.out.println("ranges  buckets  nodes  add ns/op  getClosest ns/op");
+        for (int filled = 0; filled < NodeId.BITS; filled += STEP) {
+            for (int range = NodeId.BITS - filled; range > NodeId.BITS - filled - STEP && range > 0; range--) {
+                for (int i = 0; i < 8; i++)
+                    buckets.add(NodeId.random(myID, range - 1));
+            }
+            int deepest = Math.max(NodeId.BITS - filled - STEP, 0);
+            for (int i = 0; i < operations; i++)
+                ids[i] = NodeId.random(myID, deepest + random.nextInt(NodeId.BITS - deepest));
+
+            long start = System.nanoTime();
+            for (int i = 0; i < operations; i++) {
+                if (buckets.add(ids[i]))
+                    sink++;
+            }
+            long addTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < operations; i++)
+                sink += buckets.getClosest(ids[i], 8).size();
+            long closestTime = System.nanoTime() - start;
+
+            if (print)
+                System.out.println(String.format("%6d  %7d  %5d  %9.1f  %16.1f", Math.min(filled + STEP, NodeId.BITS),
+                        buckets.getBuckets().size(), buckets.size(),
+                        (double) addTime / operations, (double) closestTime / operations));
+        }
+        if (sink == 42)
+            System.out.println(); // Keeps the loops from being optimized away
+    }
+}
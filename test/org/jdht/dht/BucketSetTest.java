@@ -0,0 +1,88 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks getClosest() against sorting every ID in the table, and that walkByDistance()
+ * visits each bucket once, closest first, for targets near and far from our ID.
+ */
+public class BucketSetTest {
+
+    private final static int TABLES = 300;
+    private final static int QUERIES = 50;
+
+    public static void main(String[] args) {
+        Random random = new Random(5);
+        int queries = 0;
+        for (int t = 0; t < TABLES; t++) {
+            NodeId myID = NodeId.random();
+            final BucketSet buckets = new BucketSet(myID, new BucketSet.Trimmer() {
+                @Override
+                public boolean trim(Bucket b) {
+                    return false;
+                }
+            });
+            int count = random.nextInt(1500);
+            for (int i = 0; i < count; i++)
+                buckets.add(random.nextBoolean() ? NodeId.random() : NodeId.random(myID, random.nextInt(NodeId.BITS)));
+
+            List<NodeId> all = new ArrayList<>();
+            for (Bucket b : buckets.getBuckets())
+                all.addAll(b.getEntries());
+            check(all.size() == buckets.size(), "size");
+
+            for (int q = 0; q < QUERIES; q++, queries++) {
+                NodeId target;
+                if (q == 0)
+                    target = myID;
+                else if (random.nextInt(3) == 0)
+                    target = NodeId.random(myID, random.nextInt(NodeId.BITS));
+                else
+                    target = NodeId.random();
+                int max = 1 + random.nextInt(20);
+
+                List<NodeId> expected = new ArrayList<>(all);
+                Collections.sort(expected, new NodeId.DistanceComparator(target));
+                expected = expected.subList(0, Math.min(max, expected.size()));
+                check(expected.equals(buckets.getClosest(target, max)), "getClosest");
+
+                checkWalk(buckets, target);
+            }
+        }
+        System.out.println("BucketSetTest: " + queries + " queries OK");
+    }
+
+    private static void checkWalk(BucketSet buckets, final NodeId target){
+        final Map<Bucket, Boolean> visited = new IdentityHashMap<>();
+        final List<NodeId> order = new ArrayList<>();
+        buckets.walkByDistance(target, new BucketSet.BucketVisitor() {
+            @Override
+            public boolean visit(Bucket b) {
+                check(visited.put(b, Boolean.TRUE) == null, "bucket visited twice");
+                // Every ID here is farther than those of the buckets before
+                List<NodeId> entries = new ArrayList<>(b.getEntries());
+                Collections.sort(entries, new NodeId.DistanceComparator(target));
+                if (!order.isEmpty() && !entries.isEmpty())
+                    check(NodeId.compareDistance(target, order.get(order.size() - 1), entries.get(0)) < 0, "walk order");
+                order.addAll(entries);
+                return true;
+            }
+        });
+        check(visited.size() == buckets.getBuckets().size(), "bucket not visited");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
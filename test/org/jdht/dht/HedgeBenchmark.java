@@ -0,0 +1,85 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Times find_node lookups with and without hedging on a local network of DHTs, half of
+ * which stop answering once the routing tables are filled, so lookups keep waiting on them.
+ * Budgets take turns for each target, so both see the same tables.
+ * Not part of AllTests, run with: java org.jdht.dht.HedgeBenchmark [lookups per budget] [first UDP port]
+ */
+public class HedgeBenchmark {
+
+    private final static int NODES = 24;
+    private final static int HEDGE_BUDGET = Lookup.DEFAULT_HEDGE_BUDGET;
+    private final static long BOOTSTRAP_TIME = 4000; // 4 sec
+
+    public static void main(String[] args) throws Exception {
+        int lookups = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        int port = args.length > 1 ? Integer.parseInt(args[1]) : 19000;
+        Logger.verbose = false;
+
+        InetAddress localhost = InetAddress.getByName("127.0.0.1");
+        List<DHT> dhts = new ArrayList<>();
+        for (int i = 0; i < NODES; i++) {
+            DHT dht = new DHT(port + i, 7000 + i, null);
+            dht.start();
+            dhts.add(dht);
+        }
+        for (int i = 1; i < NODES; i++) {
+            List<Node> bootstrap = new LinkedList<>();
+            bootstrap.add(new Node(localhost, port, true));
+            dhts.get(i).addNodes(bootstrap);
+        }
+        Thread.sleep(BOOTSTRAP_TIME);
+        for (int i = 1; i < NODES; i++)
+            dhts.get(i).lookup(dhts.get(i).getMyNode().getNodeId()).get();
+
+        // The rest still have them in their tables, but get no answer
+        for (int i = 2; i < NODES; i += 2)
+            dhts.get(i).stop();
+
+        DHT dht = dhts.get(1);
+        Random random = new Random(1);
+        long[] plain = new long[lookups];
+        long[] hedged = new long[lookups];
+        for (int i = 0; i < lookups; i++) {
+            byte[] target = new byte[NodeId.LENGTH];
+            random.nextBytes(target);
+            plain[i] = time(dht, target, 0);
+            hedged[i] = time(dht, target, HEDGE_BUDGET);
+        }
+        print("no hedging", plain);
+        print("budget " + HEDGE_BUDGET, hedged);
+
+        for (int i = 1; i < NODES; i += 2)
+            dhts.get(i).stop();
+        dhts.get(0).stop();
+        System.exit(0);
+    }
+
+    private static long time(DHT dht, byte[] target, int budget) throws Exception {
+        dht.setHedgeBudget(budget);
+        long start = System.nanoTime();
+        dht.lookup(ByteBuffer.wrap(target)).get();
+        return (System.nanoTime() - start) / 1000000;
+    }
+
+    private static void print(String name, long[] times){
+        long[] sorted = times.clone();
+        Arrays.sort(sorted);
+        System.out.println(String.format("%-12s median %6d ms  p90 %6d ms  max %6d ms", name,
+                sorted[sorted.length / 2], sorted[(sorted.length * 9 - 1) / 10], sorted[sorted.length - 1]));
+    }
+}
@@ -0,0 +1,62 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the percentiles of a known set of round trips, that only the last window of
+ * them counts, and that samples added by several threads at once are all taken.
+ */
+public class LatencyTrackerTest {
+
+    private final static int WINDOW = 256;
+    private final static int THREADS = 4;
+
+    public static void main(String[] args) throws InterruptedException {
+        LatencyTracker tracker = new LatencyTracker();
+        check(tracker.getPercentile(50) == -1, "no samples");
+        tracker.addSample(-5);
+        check(tracker.getSampleCount() == 0, "negative sample taken");
+
+        for (int rtt = 1; rtt <= 100; rtt++)
+            tracker.addSample(rtt);
+        check(tracker.getSampleCount() == 100, "count");
+        check(tracker.getPercentile(0) == 1 && tracker.getPercentile(100) == 100, "min and max");
+        check(Math.abs(tracker.getPercentile(90) - 90) <= 1, "p90 " + tracker.getPercentile(90));
+
+        // A window later, only the new ones count
+        for (int i = 0; i < WINDOW; i++)
+            tracker.addSample(1000);
+        check(tracker.getPercentile(0) == 1000, "old samples still count");
+
+        final LatencyTracker shared = new LatencyTracker();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < THREADS; t++) {
+            final long rtt = 10 * (t + 1);
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < WINDOW / THREADS; i++)
+                        shared.addSample(rtt);
+                }
+            }));
+        }
+        for (Thread thread : threads)
+            thread.start();
+        for (Thread thread : threads)
+            thread.join();
+        check(shared.getSampleCount() == WINDOW, "concurrent count");
+        check(shared.getPercentile(0) == 10 && shared.getPercentile(100) == 10 * THREADS, "concurrent samples lost");
+        System.out.println("LatencyTrackerTest: OK");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
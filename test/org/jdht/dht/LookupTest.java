@@ -0,0 +1,167 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.net.InetAddress;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Runs lookups over a simulated network, where every node has a routing table of the
+ * others. Each lookup must converge on the k closest nodes, querying none twice and no
+ * more than alpha at a time, and with some nodes never answering still find the closest.
+ * Its timeout must be cancelled once it ends.
+ */
+public class LookupTest {
+
+    private final static int NETWORK_SIZE = 1000;
+    private final static int DEAD_PERCENT = 10;
+    private final static int LOOKUPS = 50;
+
+    private static class Network implements Lookup.Querier {
+        public final Map<NodeId, Node> nodes = new HashMap<>();
+        public final Map<NodeId, BucketSet> tables = new HashMap<>();
+        public final Set<NodeId> dead = new HashSet<>();
+        // Queries on their way, answered one at a time by the test
+        public final ArrayDeque<Node> inFlight = new ArrayDeque<>();
+        public final Set<NodeId> queried = new HashSet<>();
+        public int maxInFlight = 0;
+        public boolean twice = false;
+        public int finished = 0;
+
+        @Override
+        public boolean query(Lookup lookup, Node node) {
+            if (!queried.add(node.getId()))
+                twice = true;
+            inFlight.add(node);
+            maxInFlight = Math.max(maxInFlight, inFlight.size());
+            return true;
+        }
+
+        @Override
+        public void finished(Lookup lookup) {
+            finished++;
+        }
+
+        public void run(Lookup lookup){
+            Node node;
+            while ((node = inFlight.poll()) != null) {
+                if (dead.contains(node.getId())) {
+                    lookup.failed(node);
+                    continue;
+                }
+                List<Node> closer = new ArrayList<>();
+                for (NodeId id : tables.get(node.getId()).getClosest(lookup.getTargetId(), Lookup.DEFAULT_K))
+                    closer.add(nodes.get(id));
+                lookup.responded(node, closer);
+            }
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        run(0, true);
+        // Dead nodes in the routing tables hide some live ones, only the closest is sure
+        run(DEAD_PERCENT, false);
+    }
+
+    private static void run(int deadPercent, boolean exact) throws Exception {
+        Random random = new Random(3);
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        Network network = new Network();
+        List<Node> all = new ArrayList<>();
+        List<NodeId> live = new ArrayList<>();
+        for (int i = 0; i < NETWORK_SIZE; i++) {
+            Node node = new Node(randomId(random), ip, 1000 + i, false);
+            network.nodes.put(node.getId(), node);
+            all.add(node);
+            if (random.nextInt(100) < deadPercent)
+                network.dead.add(node.getId());
+            else
+                live.add(node.getId());
+        }
+        BucketSet.Trimmer keep = new BucketSet.Trimmer() {
+            @Override
+            public boolean trim(Bucket b) {
+                return false;
+            }
+        };
+        for (Node node : all) {
+            BucketSet table = new BucketSet(node.getId(), keep);
+            for (Node other : all)
+                table.add(other.getId());
+            network.tables.put(node.getId(), table);
+        }
+
+        // Never started, only keeps the timeouts
+        TimingWheel timer = new TimingWheel();
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+
+        for (int l = 0; l < LOOKUPS; l++) {
+            NodeId target = randomId(random);
+            if (l % 2 == 1) {
+                // Right next to a node, like a node's own lookup
+                byte[] near = all.get(l).getId().getBytes();
+                for (int i = random.nextInt(NodeId.LENGTH); i < NodeId.LENGTH; i++)
+                    near[i] = (byte) random.nextInt();
+                target = NodeId.read(near);
+            }
+            network.queried.clear();
+            network.maxInFlight = 0;
+            network.finished = 0;
+
+            Lookup lookup = new Lookup(target.toByteBuffer(), network);
+            List<Node> seeds = new ArrayList<>();
+            for (int i = 0; i < Lookup.DEFAULT_K; i++)
+                seeds.add(all.get(random.nextInt(all.size())));
+            lookup.addCandidates(seeds);
+            lookup.start();
+            TimingWheel.Timeout timeout = timer.schedule(nothing, PeerQuery.MAX_QUERY_TIME);
+            lookup.setTimeout(timeout);
+            network.run(lookup);
+
+            check(lookup.isFinished() && lookup.isConverged() && network.finished == 1, "not converged");
+            check(timeout.isCancelled(), "timeout left behind");
+            check(!network.twice, "node queried twice");
+            check(network.maxInFlight <= Lookup.DEFAULT_ALPHA, network.maxInFlight + " in flight");
+
+            List<NodeId> expected = new ArrayList<>(live);
+            Collections.sort(expected, new NodeId.DistanceComparator(target));
+            expected = expected.subList(0, Lookup.DEFAULT_K);
+            List<NodeId> found = new ArrayList<>();
+            for (Node node : lookup.getClosest()) {
+                check(!network.dead.contains(node.getId()), "dead node among the closest");
+                found.add(node.getId());
+            }
+            check(found.size() == Lookup.DEFAULT_K, "lookup " + l + " found " + found.size());
+            check(exact ? expected.equals(found) : expected.get(0).equals(found.get(0)),
+                    "lookup " + l + " missed the closest");
+        }
+        System.out.println("LookupTest: " + LOOKUPS + " lookups with " + deadPercent + "% dead nodes OK");
+    }
+
+    // From random, so every run is the same
+    private static NodeId randomId(Random random){
+        byte[] id = new byte[NodeId.LENGTH];
+        random.nextBytes(id);
+        return NodeId.read(id);
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,76 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Checks NodeId's word arithmetic against the BigInteger and byte by byte code it replaced:
+ * ranges, XOR distance order, unsigned order, bits, equality and random IDs in a range.
+ */
+public class NodeIdTest {
+
+    private final static int ROUNDS = 200000;
+
+    public static void main(String[] args) {
+        Random random = new Random(1);
+        for (int i = 0; i < ROUNDS; i++) {
+            byte[] a = new byte[NodeId.LENGTH];
+            byte[] b = new byte[NodeId.LENGTH];
+            byte[] c = new byte[NodeId.LENGTH];
+            random.nextBytes(a);
+            random.nextBytes(b);
+            random.nextBytes(c);
+            if (i % 3 == 0)
+                System.arraycopy(a, 0, b, 0, random.nextInt(NodeId.LENGTH + 1)); // Long common prefixes too
+            NodeId idA = NodeId.read(a);
+            NodeId idB = NodeId.read(b);
+            NodeId idC = NodeId.read(c);
+            BigInteger bigA = new BigInteger(1, a);
+            BigInteger bigB = new BigInteger(1, b);
+            BigInteger bigC = new BigInteger(1, c);
+
+            check(Arrays.equals(idA.getBytes(), a), "getBytes");
+            check(idA.highestDifferingBit(idB) == range(a, b), "highestDifferingBit");
+            check(idA.highestDifferingBit(idB) == bigA.xor(bigB).bitLength() - 1, "highestDifferingBit, BigInteger");
+            check(Integer.signum(NodeId.compareDistance(idC, idA, idB)) ==
+                    bigA.xor(bigC).compareTo(bigB.xor(bigC)), "compareDistance");
+            check(Integer.signum(idA.compareTo(idB)) == bigA.compareTo(bigB), "compareTo");
+            check(idA.equals(idB) == Arrays.equals(a, b), "equals");
+            NodeId copy = NodeId.read(a.clone());
+            check(idA.equals(copy) && idA.hashCode() == copy.hashCode(), "hashCode");
+
+            int bit = random.nextInt(NodeId.BITS);
+            check(idA.testBit(bit) == bigA.testBit(bit), "testBit " + bit);
+
+            int range = random.nextInt(NodeId.BITS);
+            NodeId inRange = NodeId.random(idA, range);
+            BigInteger bigInRange = new BigInteger(1, inRange.getBytes());
+            // Same as base above range, flipped at range
+            check(bigInRange.shiftRight(range + 1).equals(bigA.shiftRight(range + 1)), "random above " + range);
+            check(bigInRange.testBit(range) != bigA.testBit(range), "random at " + range);
+            check(idA.highestDifferingBit(inRange) == range, "random range " + range);
+        }
+        System.out.println("NodeIdTest: " + ROUNDS + " rounds OK");
+    }
+
+    // The byte walk BucketSet used to find ranges with
+    private static int range(byte[] a, byte[] b){
+        for (int i = 0; i < NodeId.LENGTH; i++) {
+            int diff = (a[i] ^ b[i]) & 0xff;
+            if (diff != 0)
+                return (NodeId.LENGTH - 1 - i) * 8 + 31 - Integer.numberOfLeadingZeros(diff);
+        }
+        return -1;
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,126 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that standby nodes take the places nodes leave, and that findClosest() reads
+ * a whole table while a writer keeps adding, removing and splitting buckets.
+ */
+public class NodeListTest {
+
+    private final static long STRESS_TIME = 3000; // 3 sec
+    private final static int READERS = 3;
+    private final static int BUCKET_SIZE = 8;
+
+    public static void main(String[] args) throws Exception {
+        InetAddress ip = InetAddress.getByName("127.0.0.1");
+        replacements(ip);
+        concurrentReads(ip);
+    }
+
+    private static void replacements(InetAddress ip){
+        NodeId myID = NodeId.random();
+        NodeList list = new NodeList(myID, new TimingWheel(), null);
+        // Far more than the bucket of the far half takes
+        List<NodeId> in = new ArrayList<>();
+        List<NodeId> out = new ArrayList<>();
+        for (int i = 0; i < 40; i++) {
+            NodeId id = NodeId.random(myID, NodeId.BITS - 1);
+            Node node = list.putIfAbsent(id, ip, 2000 + i, false, false);
+            if (node != null) {
+                node.setLastSeen();
+                in.add(id);
+            } else {
+                out.add(id);
+            }
+        }
+        check(list.size() == in.size() && !out.isEmpty(), "bucket full");
+
+        list.remove(in.get(0));
+        check(list.size() == in.size(), "removed node replaced");
+        check(list.get(out.get(out.size() - 1)) != null, "most recent standby first");
+
+        Node questionable = list.get(in.get(1));
+        check(list.replaceIfStandby(questionable), "swapped for a standby");
+        check(list.get(in.get(1)) == null && list.size() == in.size(), "swapped out");
+        check(list.get(out.get(out.size() - 2)) != null, "next most recent standby");
+
+        // A bucket keeps as many standbys as it takes nodes, once those are used up nodes stay
+        int swaps = 0;
+        for (int i = 2; i < in.size() && list.replaceIfStandby(list.get(in.get(i))); i++)
+            swaps++;
+        check(swaps == Math.min(out.size(), BUCKET_SIZE) - 2, "one swap per standby");
+        check(!list.replaceIfStandby(list.get(out.get(out.size() - 1))), "no standby left");
+        check(list.size() == in.size(), "size kept");
+        System.out.println("NodeListTest: replacements OK");
+    }
+
+    private static void concurrentReads(final InetAddress ip) throws InterruptedException {
+        final NodeList list = new NodeList(NodeId.random(), new TimingWheel(), null);
+        final AtomicBoolean stop = new AtomicBoolean();
+        final AtomicLong reads = new AtomicLong();
+        final AtomicLong errors = new AtomicLong();
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < READERS; t++) {
+            threads.add(new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    Node[] closest = new Node[8];
+                    while (!stop.get()) {
+                        try {
+                            NodeId target = NodeId.random();
+                            int count = list.findClosest(target, closest);
+                            for (int i = 0; i < count; i++) {
+                                if (closest[i] == null ||
+                                        i > 0 && NodeId.compareDistance(target, closest[i - 1].getId(), closest[i].getId()) > 0)
+                                    errors.incrementAndGet();
+                            }
+                            reads.incrementAndGet();
+                        } catch (RuntimeException e) {
+                            e.printStackTrace();
+                            errors.incrementAndGet();
+                        }
+                    }
+                }
+            }));
+        }
+        threads.add(new Thread(new Runnable() {
+            @Override
+            public void run() {
+                Random random = new Random(1);
+                List<NodeId> ids = new ArrayList<>();
+                while (!stop.get()) {
+                    NodeId id = NodeId.random();
+                    if (list.putIfAbsent(id, ip, 1000 + random.nextInt(1000), false, false) != null)
+                        ids.add(id);
+                    if (ids.size() > 300)
+                        list.remove(ids.remove(random.nextInt(ids.size())));
+                }
+            }
+        }));
+        for (Thread thread : threads)
+            thread.start();
+        Thread.sleep(STRESS_TIME);
+        stop.set(true);
+        for (Thread thread : threads)
+            thread.join();
+        check(errors.get() == 0, errors + " bad reads");
+        check(reads.get() > 0, "no reads");
+        System.out.println("NodeListTest: " + reads + " concurrent reads OK, " + list.numOfBuckets() + " buckets");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}
@@ -0,0 +1,166 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+
+package org.jdht.dht;
+
+
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules tasks over several rotations of a small and of the default wheel, cancels half
+ * of them and checks that the rest run once, never early, and that cancelled ones never do.
+ * Then that expired tasks are handed to the executor, and that a stopped wheel is empty
+ * and runs again once restarted, also from one of its own tasks.
+ */
+public class TimingWheelTest {
+
+    private final static int TASKS = 20000;
+    private final static int MAX_DELAY = 2000; // 2 sec
+    private final static long MAX_LATE = 500; // Slack for a busy machine, ms
+
+    public static void main(String[] args) throws Exception {
+        for (int wheelSize : new int[]{16, TimingWheel.DEFAULT_WHEEL_SIZE})
+            run(wheelSize);
+        executor();
+        restart();
+    }
+
+    private static void run(int wheelSize) throws InterruptedException {
+        TimingWheel wheel = new TimingWheel(TimingWheel.DEFAULT_TICK, wheelSize);
+        wheel.start();
+        final AtomicInteger fired = new AtomicInteger();
+        final AtomicInteger early = new AtomicInteger();
+        final AtomicInteger badFire = new AtomicInteger();
+        final AtomicLong maxLate = new AtomicLong();
+        final boolean[] cancelled = new boolean[TASKS];
+        TimingWheel.Timeout[] timeouts = new TimingWheel.Timeout[TASKS];
+        Random random = new Random(1);
+
+        for (int i = 0; i < TASKS; i++) {
+            final int task = i;
+            long delay = random.nextInt(MAX_DELAY);
+            final long due = System.nanoTime() + delay * 1000000L;
+            timeouts[i] = wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    long late = System.nanoTime() - due;
+                    if (late < 0)
+                        early.incrementAndGet();
+                    if (cancelled[task])
+                        badFire.incrementAndGet();
+                    long max;
+                    do {
+                        max = maxLate.get();
+                    } while (late > max && !maxLate.compareAndSet(max, late));
+                    fired.incrementAndGet();
+                }
+            }, delay);
+            if (i % 100 == 0)
+                Thread.sleep(1); // Scheduled at different ticks
+        }
+        int cancelCount = 0;
+        for (int i = 0; i < TASKS; i += 2) {
+            cancelled[i] = true; // Before cancel(), the task may run meanwhile
+            if (timeouts[i].cancel())
+                cancelCount++;
+            else
+                cancelled[i] = false;
+        }
+        Thread.sleep(MAX_DELAY + MAX_LATE * 2);
+        wheel.stop();
+
+        check(fired.get() + cancelCount == TASKS, "ran " + fired + " with " + cancelCount + " cancelled");
+        check(early.get() == 0, early + " ran early");
+        check(badFire.get() == 0, badFire + " cancelled ran");
+        check(wheel.size() == 0, wheel.size() + " still pending");
+        check(maxLate.get() < MAX_LATE * 1000000L, "late by " + maxLate.get() / 1000000 + " ms");
+        System.out.println("TimingWheelTest: wheel of " + wheelSize + ", " + fired + " ran, " + cancelCount +
+                " cancelled, " + maxLate.get() / 1000000 + " ms late at most OK");
+    }
+
+    private static void executor() throws InterruptedException {
+        TimingWheel wheel = new TimingWheel();
+        final AtomicInteger executed = new AtomicInteger();
+        final Thread[] ranOn = new Thread[1];
+        wheel.setExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                executed.incrementAndGet();
+                Thread thread = new Thread(command);
+                thread.start();
+            }
+        });
+        wheel.start();
+        final Object lock = new Object();
+        synchronized (lock){
+            wheel.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (lock){
+                        ranOn[0] = Thread.currentThread();
+                        lock.notifyAll();
+                    }
+                }
+            }, 20);
+            lock.wait(MAX_LATE * 4);
+        }
+        wheel.stop();
+        check(ranOn[0] != null && executed.get() == 1, "not handed to the executor");
+        check(!"DHT_Timer".equals(ranOn[0].getName()), "ran on the timer thread");
+        System.out.println("TimingWheelTest: executor OK");
+    }
+
+    private static void restart() throws InterruptedException {
+        final TimingWheel wheel = new TimingWheel(1, 16);
+        Runnable nothing = new Runnable() {
+            @Override
+            public void run() {
+            }
+        };
+        for (int round = 0; round < 200; round++) {
+            wheel.start();
+            for (int i = 0; i < 100; i++)
+                wheel.schedule(nothing, i % 40);
+            wheel.stop();
+            check(wheel.size() == 0, wheel.size() + " left after stop");
+        }
+
+        // Restarted by a task of the worker being stopped
+        final AtomicInteger fired = new AtomicInteger();
+        final Object lock = new Object();
+        wheel.start();
+        wheel.schedule(new Runnable() {
+            @Override
+            public void run() {
+                wheel.stop();
+                wheel.start();
+                wheel.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (lock){
+                            fired.incrementAndGet();
+                            lock.notifyAll();
+                        }
+                    }
+                }, 20);
+            }
+        }, 5);
+        synchronized (lock){
+            long end = System.currentTimeMillis() + MAX_LATE * 4;
+            while (fired.get() == 0 && System.currentTimeMillis() < end)
+                lock.wait(MAX_LATE);
+        }
+        wheel.stop();
+        check(fired.get() == 1, "restarted wheel did not run");
+        System.out.println("TimingWheelTest: restarts OK");
+    }
+
+    private static void check(boolean condition, String what){
+        if (!condition)
+            throw new AssertionError(what);
+    }
+}